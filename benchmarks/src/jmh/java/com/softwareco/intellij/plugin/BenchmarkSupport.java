@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.Gson;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+
+/**
+ * Shared setup for the benchmarks. They run outside the IDE, so the plugin
+ * version is preset and the documents and events are synthetic.
+ */
+public class BenchmarkSupport {
+
+    public static void init() throws Exception {
+        // there's no plugin descriptor to look the version up from
+        Field version = SoftwareCoUtils.class.getDeclaredField("VERSION");
+        version.setAccessible(true);
+        version.set(null, "benchmark");
+
+        if (SoftwareCo.gson == null) {
+            SoftwareCo.gson = new Gson();
+        }
+    }
+
+    /**
+     * A read only document with the given number of lines of source like text
+     */
+    public static Document document(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("        int value").append(i).append(" = compute(").append(i).append(");\n");
+        }
+        return new DocumentImpl(sb);
+    }
+
+    public static String fragment(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((i % 60 == 59) ? '\n' : (char) ('a' + (i % 26)));
+        }
+        return sb.toString();
+    }
+
+    public static String filePath(int i) {
+        return "/Users/dev/projects/benchmark/src/main/java/com/example/module" + (i % 50) + "/File" + i + ".java";
+    }
+
+    /**
+     * A change that has already been applied to the document
+     */
+    public static class SyntheticDocumentEvent extends DocumentEvent {
+        private final Document document;
+        private final int offset;
+        private final CharSequence oldFragment;
+        private final CharSequence newFragment;
+
+        public SyntheticDocumentEvent(Document document, int offset, CharSequence oldFragment, CharSequence newFragment) {
+            super(document);
+            this.document = document;
+            this.offset = offset;
+            this.oldFragment = oldFragment;
+            this.newFragment = newFragment;
+        }
+
+        @Override
+        public Document getDocument() {
+            return document;
+        }
+
+        @Override
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public int getOldLength() {
+            return oldFragment.length();
+        }
+
+        @Override
+        public int getNewLength() {
+            return newFragment.length();
+        }
+
+        @Override
+        public CharSequence getOldFragment() {
+            return oldFragment;
+        }
+
+        @Override
+        public CharSequence getNewFragment() {
+            return newFragment;
+        }
+
+        @Override
+        public long getOldTimeStamp() {
+            return 0;
+        }
+    }
+
+    /**
+     * Discards everything written to it
+     */
+    public static class NullOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
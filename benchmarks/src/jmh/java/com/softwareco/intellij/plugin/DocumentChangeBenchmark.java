@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.editor.Document;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of the work documentChanged does on the event dispatch thread:
+ * classifying the change and queueing its record. The queue is drained
+ * in line every batch so it never overflows.
+ */
+@State(Scope.Thread)
+public class DocumentChangeBenchmark {
+
+    @Param({"typing", "paste", "refactor"})
+    public String scenario;
+
+    @Param({"1", "100", "10000"})
+    public int fileCount;
+
+    private SoftwareCoEventManager eventMgr;
+    private Document[] documents;
+    private BenchmarkSupport.SyntheticDocumentEvent[] events;
+    private int cursor = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.init();
+        eventMgr = SoftwareCoEventManager.getInstance();
+        documents = new Document[fileCount];
+        events = new BenchmarkSupport.SyntheticDocumentEvent[fileCount];
+        String paste = BenchmarkSupport.fragment(64 * 1024);
+        for (int i = 0; i < fileCount; i++) {
+            Document document = BenchmarkSupport.document(200);
+            documents[i] = document;
+            int offset = (i * 37) % (document.getTextLength() / 2);
+            switch (scenario) {
+                case "paste":
+                    events[i] = new BenchmarkSupport.SyntheticDocumentEvent(document, offset, "", paste);
+                    break;
+                case "refactor":
+                    // a rename touching every file
+                    events[i] = new BenchmarkSupport.SyntheticDocumentEvent(document, offset, "compute", "calculate");
+                    break;
+                default:
+                    events[i] = new BenchmarkSupport.SyntheticDocumentEvent(document, offset, "", "a");
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public int documentChanged() {
+        int i = cursor++ % fileCount;
+        eventMgr.handleBeforeChangeEvents(documents[i], events[i]);
+        eventMgr.handleChangeEvents(documents[i], events[i]);
+        KeystrokeEventQueue queue = eventMgr.getEventQueue();
+        if (queue.getQueueDepth() >= 1024) {
+            return queue.drain().size();
+        }
+        return i;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.softwareco.intellij.plugin.KeystrokeFileInfo.Metric;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of applying one coalesced document change to a project's
+ * KeystrokeCount, the way the event consumer does it, spread over
+ * 1 to 10k files.
+ */
+@State(Scope.Thread)
+public class KeystrokeCountBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int fileCount;
+
+    private KeystrokeManager.KeystrokeCountWrapper wrapper;
+    private int[] fileIds;
+    private int cursor = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.init();
+        wrapper = KeystrokeManager.getInstance().getKeystrokeWrapper("benchmark", "/Users/dev/projects/benchmark");
+        fileIds = new int[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            fileIds[i] = SoftwareCoFilePaths.getInstance().getFileId(
+                    BenchmarkSupport.filePath(i), "/Users/dev/projects/benchmark");
+        }
+    }
+
+    @Benchmark
+    public long updateFileInfo() {
+        int fileId = fileIds[cursor++ % fileCount];
+        KeystrokeCount keystrokeCount = wrapper.acquireKeystrokeCount();
+        try {
+            KeystrokeFileInfo fileInfo = keystrokeCount.getSourceByFileId(fileId);
+            fileInfo.increment(Metric.ADD);
+            fileInfo.update(Metric.LINES, 200);
+            keystrokeCount.incrementKeystrokes();
+            return fileInfo.get(Metric.NETKEYS);
+        } finally {
+            wrapper.releaseKeystrokeCount(keystrokeCount);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand in for the data api. It accepts each idempotency key once and
+ * counts the duplicates it drops, and sums the keystrokes of the payloads it
+ * accepted so a caller can tell one that got through twice. It can also be made to fail or stall: a
+ * failed request is still processed before the error is returned, like a
+ * response lost on the way back, so the plugin resends payloads the server
+ * already has.
+ *
+ * Start the plugin code with -Dsoftwareco.api_endpoint=http://localhost:port
+ * to send to it.
+ */
+public class MockApiServer implements Closeable {
+
+    private final HttpServer server;
+    private final Set<String> acceptedKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong unkeyed = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong keystrokes = new AtomicLong();
+
+    // share of the requests answered with a 503 after they were processed
+    public volatile double failureRate = 0;
+    // share of the requests answered after slowDelayMillis
+    public volatile double slowRate = 0;
+    public volatile long slowDelayMillis = 0;
+
+    public MockApiServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                accept(readBody(exchange));
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < slowRate) {
+                Thread.sleep(slowDelayMillis);
+            }
+            if (random.nextDouble() < failureRate) {
+                respond(exchange, 503, "{\"message\":\"unavailable\"}");
+            } else {
+                respond(exchange, 200, "{\"status\":\"success\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "{\"message\":\"bad payload\"}");
+        }
+    }
+
+    private void accept(JsonElement body) {
+        if (body.isJsonArray()) {
+            for (JsonElement payload : body.getAsJsonArray()) {
+                accept(payload);
+            }
+            return;
+        }
+        JsonElement key = body.getAsJsonObject().get(SoftwareCoIdempotencyKeys.FIELD);
+        if (key == null) {
+            unkeyed.incrementAndGet();
+        } else if (!acceptedKeys.add(key.getAsString())) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        JsonElement count = body.getAsJsonObject().get("keystrokes");
+        if (count != null) {
+            keystrokes.addAndGet(count.getAsLong());
+        }
+    }
+
+    private JsonElement readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(reader);
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public int getAcceptedCount() {
+        return acceptedKeys.size();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    public long getUnkeyedCount() {
+        return unkeyed.get();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Keystrokes of the payloads that were accepted, the duplicates aren't counted
+     */
+    public long getKeystrokeCount() {
+        return keystrokes.get();
+    }
+
+    /**
+     * Forgets the accepted keys and zeroes the counts
+     */
+    public void reset() {
+        acceptedKeys.clear();
+        duplicates.set(0);
+        unkeyed.set(0);
+        requests.set(0);
+        keystrokes.set(0);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Time to upload a journal backlog to MockApiServer while it fails and stalls
+ * a share of the requests, so the uploader's retries and hedged requests
+ * resend payloads the server already has. That every payload is accepted
+ * exactly once is checked by OfflineUploadTest.
+ */
+@State(Scope.Benchmark)
+public class OfflineUploadBenchmark {
+
+    @Param({"0", "0.2"})
+    public double failureRate;
+
+    @Param({"0", "0.1"})
+    public double slowRate;
+
+    @Param({"2000"})
+    public int recordCount;
+
+    private MockApiServer server;
+    private Path home;
+    private SoftwareCoJournal journal;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = new MockApiServer();
+        server.failureRate = failureRate;
+        server.slowRate = slowRate;
+        server.slowDelayMillis = 300;
+
+        // keep the session and journal files out of the real ~/.software,
+        // both have to be set before SoftwareCoUtils is loaded
+        home = Files.createTempDirectory("codetime-upload");
+        System.setProperty("user.home", home.toString());
+        System.setProperty("softwareco.api_endpoint", server.getEndpoint());
+        BenchmarkSupport.init();
+
+        SoftwareCoOfflineUploader.retryBackoffMillis = 50;
+        SoftwareCoOfflineUploader.hedgeDelayMillis = 150;
+        SoftwareCoOfflineUploader.maxAttempts = 10;
+        // the failures are random, a run of them shouldn't stop the upload
+        SoftwareCoCircuitBreaker.failureThreshold = Integer.MAX_VALUE;
+    }
+
+    @Setup(Level.Invocation)
+    public void fillJournal() throws IOException {
+        journal = new SoftwareCoJournal(Files.createTempDirectory(home, "journal"));
+        long start = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < recordCount; i++) {
+            JsonObject payload = new JsonObject();
+            payload.addProperty("type", "Events");
+            payload.addProperty("keystrokes", String.valueOf(i % 40));
+            payload.addProperty("start", start + i * 60);
+            payload.addProperty(SoftwareCoIdempotencyKeys.FIELD, SoftwareCoIdempotencyKeys.next(start / 60 + i));
+            JsonObject source = new JsonObject();
+            JsonObject fileInfo = new JsonObject();
+            fileInfo.addProperty("add", i % 40);
+            source.add(BenchmarkSupport.filePath(i), fileInfo);
+            payload.add("source", source);
+            journal.append(payload.toString());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void upload() throws Exception {
+        new SoftwareCoOfflineUploader(journal).upload(journal.sealSegments());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeJournal() {
+        journal.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.close();
+        System.out.println("Dropped " + server.getDuplicateCount() + " duplicates in " +
+                server.getRequestCount() + " requests");
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.softwareco.intellij.plugin.KeystrokeFileInfo.Metric;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/**
+ * Cost of writing a /data payload with 1 to 10k files, streamed through
+ * SoftwareJsonEntity versus built as a String.
+ */
+@State(Scope.Thread)
+public class PayloadSerializationBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int fileCount;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private KeystrokeCount keystrokeCount;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.init();
+        keystrokeCount = new KeystrokeCount();
+        keystrokeCount.setProject(new KeystrokeProject("benchmark", "/Users/dev/projects/benchmark"));
+        for (int i = 0; i < fileCount; i++) {
+            KeystrokeFileInfo fileInfo = keystrokeCount.getSourceByFileName(BenchmarkSupport.filePath(i));
+            fileInfo.update(Metric.ADD, 40);
+            fileInfo.update(Metric.DELETE, 5);
+            fileInfo.update(Metric.LINES, 200);
+            keystrokeCount.addKeystrokes(45);
+        }
+    }
+
+    @Benchmark
+    public long streamed() throws IOException {
+        BenchmarkSupport.NullOutputStream out = new BenchmarkSupport.NullOutputStream();
+        SoftwareJsonEntity.of(keystrokeCount, gzip).writeTo(out);
+        return out.count;
+    }
+
+    @Benchmark
+    public int string() {
+        return SoftwareCo.gson.toJson(keystrokeCount).length();
+    }
+}
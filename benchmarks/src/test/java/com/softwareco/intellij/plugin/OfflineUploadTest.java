@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.JsonObject;
+import org.apache.http.client.methods.HttpPost;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads journal backlogs to MockApiServer while it fails and stalls
+ * requests, so payloads are sent more than once, and checks that the server
+ * counted every keystroke exactly once.
+ */
+public class OfflineUploadTest {
+
+    private static MockApiServer server;
+    private static Path home;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new MockApiServer();
+        server.slowDelayMillis = 300;
+
+        // keep the session and journal files out of the real ~/.software,
+        // both have to be set before SoftwareCoUtils is loaded
+        home = Files.createTempDirectory("codetime-upload-test");
+        System.setProperty("user.home", home.toString());
+        System.setProperty("softwareco.api_endpoint", server.getEndpoint());
+        BenchmarkSupport.init();
+
+        SoftwareCoOfflineUploader.retryBackoffMillis = 50;
+        SoftwareCoOfflineUploader.hedgeDelayMillis = 150;
+        // the failures are made on purpose, the api stays available
+        SoftwareCoCircuitBreaker.failureThreshold = Integer.MAX_VALUE;
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void resetServer() {
+        server.reset();
+        server.failureRate = 0;
+        server.slowRate = 0;
+        // small chunks so every upload makes plenty of requests
+        SoftwareCoOfflineUploader.maxChunkRecords = 50;
+        SoftwareCoOfflineUploader.maxAttempts = 10;
+    }
+
+    @Test
+    public void retriedAndHedgedPayloadsAreCountedOnce() throws Exception {
+        server.failureRate = 0.2;
+        server.slowRate = 0.1;
+        SoftwareCoJournal journal = newJournal();
+        long keystrokes = fill(journal, 2000);
+
+        new SoftwareCoOfflineUploader(journal).upload(journal.sealSegments());
+
+        assertEquals("payloads left in the journal", 0, journal.getRecordCount());
+        journal.close();
+        assertEquals("payloads accepted", 2000, server.getAcceptedCount());
+        assertEquals("keystrokes counted", keystrokes, server.getKeystrokeCount());
+        assertEquals("payloads without a key", 0, server.getUnkeyedCount());
+        assertTrue("nothing was sent twice", server.getDuplicateCount() > 0);
+    }
+
+    @Test
+    public void compactionKeepsTheKeysOfSentPayloads() throws Exception {
+        SoftwareCoJournal journal = newJournal();
+        long keystrokes = fill(journal, 600);
+
+        // the server takes the first chunks but answers with errors, the upload gives up
+        server.failureRate = 1;
+        SoftwareCoOfflineUploader.maxAttempts = 1;
+        new SoftwareCoOfflineUploader(journal).upload(journal.sealSegments());
+        assertTrue("nothing reached the server", server.getAcceptedCount() > 0);
+        assertEquals("payloads acknowledged", 600, journal.getRecordCount());
+
+        // merges the payloads that weren't sent, the sent ones are resent with their keys
+        new SoftwareCoOfflineCompactor(journal).compact();
+        assertTrue("nothing was merged", journal.getRecordCount() < 600);
+
+        server.failureRate = 0;
+        SoftwareCoOfflineUploader.maxAttempts = 10;
+        new SoftwareCoOfflineUploader(journal).upload(journal.sealSegments());
+
+        assertEquals("payloads left in the journal", 0, journal.getRecordCount());
+        journal.close();
+        assertEquals("keystrokes counted", keystrokes, server.getKeystrokeCount());
+        assertEquals("payloads without a key", 0, server.getUnkeyedCount());
+        assertTrue("the sent payloads weren't resent", server.getDuplicateCount() > 0);
+    }
+
+    @Test
+    public void unreadableSegmentIsSetAsideWithoutOpeningTheBreaker() throws Exception {
+        SoftwareCoJournal.Encoding encoding = SoftwareCoJournal.encoding;
+        long maxSegmentBytes = SoftwareCoJournal.maxSegmentBytes;
+        int failureThreshold = SoftwareCoCircuitBreaker.failureThreshold;
+        SoftwareCoJournal.encoding = SoftwareCoJournal.Encoding.DEFLATE;
+        SoftwareCoJournal.maxSegmentBytes = 16 * 1024;
+        SoftwareCoCircuitBreaker.failureThreshold = 1;
+        try {
+            Path dir = Files.createTempDirectory(home, "journal");
+            SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+            fill(journal, 600);
+            List<Long> segments = journal.sealSegments();
+            assertTrue("more than one segment", segments.size() > 1);
+            AtomicInteger damagedRecords = new AtomicInteger();
+            journal.readSegment(segments.get(0), payload -> damagedRecords.incrementAndGet());
+
+            // the first record of a compressed segment holds the others' dictionary
+            Path segment = dir.resolve(String.format("segment-%016d.journal", segments.get(0)));
+            byte[] bytes = Files.readAllBytes(segment);
+            bytes[4 + 8 + 2] ^= 0x5a;
+            Files.write(segment, bytes);
+
+            new SoftwareCoOfflineUploader(journal).upload(segments);
+            assertEquals("the api is still available", SoftwareCoCircuitBreaker.State.CLOSED,
+                    SoftwareCoCircuitBreaker.getInstance().getState());
+            assertTrue("the segment was set aside",
+                    Files.exists(segment.resolveSibling(segment.getFileName() + ".damaged")));
+
+            new SoftwareCoOfflineUploader(journal).upload(journal.sealSegments());
+            assertEquals("payloads left in the journal", 0, journal.getRecordCount());
+            journal.close();
+            assertEquals("payloads accepted", 600 - damagedRecords.get(), server.getAcceptedCount());
+        } finally {
+            SoftwareCoJournal.encoding = encoding;
+            SoftwareCoJournal.maxSegmentBytes = maxSegmentBytes;
+            SoftwareCoCircuitBreaker.failureThreshold = failureThreshold;
+        }
+    }
+
+    @Test
+    public void payloadsStoredAfterAPostAreNotMerged() throws Exception {
+        SoftwareCoJournal journal = newJournal();
+        // the live posts reach the server but fail, so they're stored too
+        server.failureRate = 1;
+        long keystrokes = fill(journal, 100, true);
+        assertEquals("payloads that reached the server", 100, server.getAcceptedCount());
+        server.failureRate = 0;
+        keystrokes += fill(journal, 100, false);
+
+        // only the payloads that never went out are merged, with each other
+        new SoftwareCoOfflineCompactor(journal).compact();
+        long records = journal.getRecordCount();
+        assertTrue("nothing was merged", records < 200);
+        assertTrue("stored posts were merged", records > 100);
+
+        new SoftwareCoOfflineUploader(journal).upload(journal.sealSegments());
+
+        assertEquals("payloads left in the journal", 0, journal.getRecordCount());
+        journal.close();
+        assertEquals("keystrokes counted", keystrokes, server.getKeystrokeCount());
+        assertEquals("stored posts counted twice", 100, server.getDuplicateCount());
+    }
+
+    private SoftwareCoJournal newJournal() throws IOException {
+        return new SoftwareCoJournal(Files.createTempDirectory(home, "journal"));
+    }
+
+    private long fill(SoftwareCoJournal journal, int records) throws IOException {
+        return fill(journal, records, false);
+    }
+
+    /**
+     * Appends a minute of keystrokes per payload, ending now, and returns
+     * the keystrokes appended
+     *
+     * @param posted post each payload to /data first, the way a failed live send is stored
+     */
+    private long fill(SoftwareCoJournal journal, int records, boolean posted) throws IOException {
+        long start = System.currentTimeMillis() / 1000 - records * 60;
+        long keystrokes = 0;
+        for (int i = 0; i < records; i++) {
+            JsonObject payload = new JsonObject();
+            payload.addProperty("type", "Events");
+            payload.addProperty("keystrokes", String.valueOf(1 + i % 40));
+            payload.addProperty("start", start + i * 60);
+            payload.addProperty(SoftwareCoIdempotencyKeys.FIELD, posted
+                    ? SoftwareCoIdempotencyKeys.next(start / 60 + i) : SoftwareCoIdempotencyKeys.nextUnsent(start / 60 + i));
+            JsonObject source = new JsonObject();
+            JsonObject fileInfo = new JsonObject();
+            fileInfo.addProperty("add", 1 + i % 40);
+            source.add(BenchmarkSupport.filePath(i), fileInfo);
+            payload.add("source", source);
+            if (posted) {
+                SoftwareCoUtils.makeApiCall("/data", HttpPost.METHOD_NAME, payload.toString());
+            }
+            journal.append(payload.toString());
+            keystrokes += 1 + i % 40;
+        }
+        return keystrokes;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Fills a one thread, one slot pool and checks what happens to the next
+ * task: it waits briefly for room, then is turned away, never run by the
+ * thread that submitted it.
+ */
+public class SoftwareCoExecutorTest {
+
+    private long submitWaitMillis;
+    private SoftwareCoExecutor executor;
+    private CountDownLatch release;
+
+    @Before
+    public void fillPool() throws InterruptedException {
+        submitWaitMillis = SoftwareCoExecutor.submitWaitMillis;
+        executor = new SoftwareCoExecutor("test", 1, 1);
+        release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        executor.execute(() -> {
+            running.countDown();
+            await(release);
+        });
+        running.await();
+        executor.execute(() -> await(release));
+    }
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        executor.shutdown();
+        SoftwareCoExecutor.submitWaitMillis = submitWaitMillis;
+    }
+
+    @Test
+    public void fullPoolTurnsTasksAway() {
+        SoftwareCoExecutor.submitWaitMillis = 10;
+        AtomicReference<Thread> ranOn = new AtomicReference<>();
+        try {
+            executor.execute(() -> ranOn.set(Thread.currentThread()));
+            fail("the task was taken");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals("turned away", 1, executor.getRejectedCount());
+        assertEquals("never ran", null, ranOn.get());
+        assertFalse(executor.tryExecute(() -> ranOn.set(Thread.currentThread())));
+        assertEquals("turned away", 2, executor.getRejectedCount());
+    }
+
+    @Test
+    public void turnedAwayFutureFails() throws InterruptedException {
+        SoftwareCoExecutor.submitWaitMillis = 10;
+        CompletableFuture<Thread> future = executor.supplyAsync(Thread::currentThread);
+        assertTrue("failed right away", future.isCompletedExceptionally());
+        try {
+            future.get();
+            fail("the task ran");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void submitterWaitsForRoom() throws Exception {
+        SoftwareCoExecutor.submitWaitMillis = 10 * 1000;
+        new Thread(() -> {
+            sleep(100);
+            release.countDown();
+        }).start();
+        CompletableFuture<Thread> future = executor.supplyAsync(Thread::currentThread);
+        Thread ranOn = future.get(10, TimeUnit.SECONDS);
+        assertTrue("ran on the pool", ranOn != Thread.currentThread());
+        assertEquals("nothing turned away", 0, executor.getRejectedCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Damages the journal's files the way a crash or a bad disk would, and
+ * stops compactions part way through, then checks what a journal opened on
+ * the same directory reads back.
+ */
+public class SoftwareCoJournalTest {
+
+    // "record-0" and its record header
+    private static final int RECORD_SIZE = 16;
+
+    private long maxSegmentBytes;
+    private Path dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        maxSegmentBytes = SoftwareCoJournal.maxSegmentBytes;
+        dir = Files.createTempDirectory("codetime-journal-test");
+    }
+
+    @After
+    public void restoreConfig() {
+        SoftwareCoJournal.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    @Test
+    public void incompleteTailIsCutOffWhenTheStateIsLost() throws IOException {
+        Path tail = appendThenTearTail();
+        long size = Files.size(tail) - 18;
+        Files.delete(dir.resolve("journal.lock"));
+
+        SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+        assertEquals("records", 3, journal.getRecordCount());
+        assertEquals("tail size", size, Files.size(tail));
+        journal.append("record-3");
+        assertEquals(records(0, 4), readAll(journal));
+        journal.close();
+    }
+
+    @Test
+    public void incompleteTailIsCutOffOnTheNextAppend() throws IOException {
+        appendThenTearTail();
+
+        SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+        journal.append("record-3");
+        assertEquals("records", 4, journal.getRecordCount());
+        assertEquals(records(0, 4), readAll(journal));
+        journal.close();
+    }
+
+    @Test
+    public void cursorSurvivesACrashBeforeItsRename() throws IOException {
+        SoftwareCoJournal journal = appendRecords(3);
+        long segmentId = journal.sealSegments().get(0);
+        long offset = journal.findChunkEnd(segmentId, journal.getFirstRecordOffset(), 1, Long.MAX_VALUE);
+        journal.commitCursor(new SoftwareCoJournal.Cursor(segmentId, offset));
+        journal.markSent(new SoftwareCoJournal.Cursor(segmentId, offset + RECORD_SIZE));
+        journal.close();
+        // the crash left the new files half written, the old ones are intact
+        Files.write(dir.resolve("cursor.tmp"), new byte[]{1, 2, 3});
+        Files.write(dir.resolve("sent.tmp"), new byte[]{1, 2, 3});
+        Files.delete(dir.resolve("journal.lock"));
+
+        journal = new SoftwareCoJournal(dir);
+        assertEquals(records(1, 3), readAll(journal));
+        assertEquals("sent offset", offset + RECORD_SIZE, journal.getSentCursor().getOffset());
+        journal.close();
+    }
+
+    @Test
+    public void damagedCursorResendsRatherThanLoses() throws IOException {
+        SoftwareCoJournal journal = appendRecords(3);
+        long segmentId = journal.sealSegments().get(0);
+        long offset = journal.findChunkEnd(segmentId, journal.getFirstRecordOffset(), 1, Long.MAX_VALUE);
+        journal.commitCursor(new SoftwareCoJournal.Cursor(segmentId, offset));
+        journal.close();
+        flipByte(dir.resolve("cursor"), 3);
+        Files.delete(dir.resolve("journal.lock"));
+
+        journal = new SoftwareCoJournal(dir);
+        assertEquals(records(0, 3), readAll(journal));
+        journal.close();
+    }
+
+    @Test
+    public void damagedSharedStateIsRebuiltFromTheFiles() throws IOException {
+        SoftwareCoJournal.maxSegmentBytes = 4 + 3 * RECORD_SIZE;
+        appendRecords(7).close();
+        flipByte(dir.resolve("journal.lock"), 30);
+
+        SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+        assertEquals("records", 7, journal.getRecordCount());
+        assertEquals("backlog", 7 * RECORD_SIZE, journal.getBacklogBytes());
+        journal.append("record-7");
+        assertEquals(records(0, 8), readAll(journal));
+        journal.close();
+    }
+
+    @Test
+    public void compactionStoppedBeforeItsCommitIsDropped() throws IOException {
+        crashDuringCompaction(0);
+
+        SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+        assertEquals("records", 6, journal.getRecordCount());
+        assertEquals(records(0, 6), readAll(journal));
+        // the next compaction clears away the unfinished output
+        journal.beginCompaction().close();
+        assertEquals(Collections.emptyList(), list("*.compacting"));
+        journal.close();
+    }
+
+    @Test
+    public void compactionStoppedAfterItsCommitIsFinished() throws IOException {
+        crashDuringCompaction(1);
+        assertFinished();
+    }
+
+    @Test
+    public void compactionStoppedAfterItsRenameIsFinished() throws IOException {
+        crashDuringCompaction(2);
+        assertFinished();
+    }
+
+    @Test
+    public void compactionStoppedWhileDeletingItsInputsIsFinished() throws IOException {
+        crashDuringCompaction(3);
+        assertFinished();
+    }
+
+    @Test
+    public void dropOldestDropsWholeSegmentsFirst() throws IOException {
+        SoftwareCoJournal.maxSegmentBytes = 4 + 3 * RECORD_SIZE;
+        SoftwareCoJournal journal = appendRecords(10);
+
+        assertEquals("dropped", 6, journal.dropOldest(4 * RECORD_SIZE));
+        assertEquals("records", 4, journal.getRecordCount());
+        assertEquals("backlog", 4 * RECORD_SIZE, journal.getBacklogBytes());
+        assertEquals(records(6, 10), readAll(journal));
+        assertFalse("the dropped segments are deleted", Files.exists(segmentPath(0)));
+        assertEquals("nothing left to drop", 0, journal.dropOldest(4 * RECORD_SIZE));
+        journal.close();
+    }
+
+    @Test
+    public void dropOldestStopsPartWayThroughASegment() throws IOException {
+        SoftwareCoJournal.maxSegmentBytes = 4 + 3 * RECORD_SIZE;
+        SoftwareCoJournal journal = appendRecords(10);
+
+        assertEquals("dropped", 2, journal.dropOldest(8 * RECORD_SIZE));
+        assertEquals(records(2, 10), readAll(journal));
+        journal.close();
+
+        // the dropped records stay dropped for the next process
+        journal = new SoftwareCoJournal(dir);
+        assertEquals("records", 8, journal.getRecordCount());
+        assertEquals(records(2, 10), readAll(journal));
+        journal.close();
+    }
+
+    @Test
+    public void dropOldestLeavesTheSegmentBeingAppendedTo() throws IOException {
+        SoftwareCoJournal journal = appendRecords(5);
+
+        assertEquals("dropped", 0, journal.dropOldest(RECORD_SIZE));
+        assertEquals(records(0, 5), readAll(journal));
+        journal.close();
+    }
+
+    /**
+     * Appends three records, then half of a fourth as a crash during the
+     * write would leave it. Returns the torn segment.
+     */
+    private Path appendThenTearTail() throws IOException {
+        appendRecords(3).close();
+        Path tail = list("*.journal").get(0);
+        ByteBuffer torn = ByteBuffer.allocate(18);
+        torn.putInt(100).putInt(0).put("record-3-x".getBytes()).flip();
+        try (FileChannel channel = FileChannel.open(tail, StandardOpenOption.APPEND)) {
+            channel.write(torn);
+        }
+        return tail;
+    }
+
+    /**
+     * Compacts six records in two segments into one record and stops the
+     * way a crash would:
+     * 0 with the output written but not committed,
+     * 1 with the compaction file written,
+     * 2 with the output renamed too,
+     * 3 with the first input deleted too.
+     */
+    private void crashDuringCompaction(int step) throws IOException {
+        SoftwareCoJournal.maxSegmentBytes = 4 + 3 * RECORD_SIZE;
+        SoftwareCoJournal journal = appendRecords(6);
+        SoftwareCoJournal.Compaction compaction = journal.beginCompaction();
+        List<Long> inputs = compaction.getInputs();
+        assertEquals("inputs", Arrays.asList(0L, 1L), inputs);
+        compaction.write("compacted");
+        long outputId = compaction.getOutputId();
+        Path output = segmentPath(outputId).resolveSibling(segmentPath(outputId).getFileName() + ".compacting");
+        byte[] written = Files.readAllBytes(output);
+        compaction.close();
+        journal.close();
+
+        Files.write(output, written);
+        if (step >= 1) {
+            writeCompactionFile(outputId, inputs.get(0), inputs.get(inputs.size() - 1));
+        }
+        if (step >= 2) {
+            Files.move(output, segmentPath(outputId));
+        }
+        if (step >= 3) {
+            Files.delete(segmentPath(inputs.get(0)));
+        }
+    }
+
+    private void assertFinished() throws IOException {
+        SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+        assertEquals(Collections.singletonList("compacted"), readAll(journal));
+        assertEquals("records", 1, journal.getRecordCount());
+        assertFalse("the compaction file is deleted", Files.exists(dir.resolve("compaction")));
+        assertFalse("the inputs are deleted", Files.exists(segmentPath(1)));
+        journal.close();
+    }
+
+    /**
+     * Writes the compaction file the way commit does
+     */
+    private void writeCompactionFile(long outputId, long first, long last) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(36);
+        buffer.putLong(outputId).putLong(first).putLong(last).putLong(-1);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 32);
+        buffer.putInt((int) crc.getValue());
+        Files.write(dir.resolve("compaction"), buffer.array());
+    }
+
+    private SoftwareCoJournal appendRecords(int count) throws IOException {
+        SoftwareCoJournal journal = new SoftwareCoJournal(dir);
+        for (String record : records(0, count)) {
+            journal.append(record);
+        }
+        journal.sync();
+        return journal;
+    }
+
+    /**
+     * The undelivered records, oldest first
+     */
+    private static List<String> readAll(SoftwareCoJournal journal) throws IOException {
+        List<String> records = new ArrayList<>();
+        SoftwareCoJournal.Cursor cursor = journal.getCommittedCursor();
+        for (long segmentId : journal.sealSegments()) {
+            if (segmentId < cursor.getSegmentId()) {
+                continue;
+            }
+            long from = (segmentId == cursor.getSegmentId()) ? cursor.getOffset() : journal.getFirstRecordOffset();
+            journal.readSegment(segmentId, from, Long.MAX_VALUE, records::add);
+        }
+        return records;
+    }
+
+    private static List<String> records(int from, int to) {
+        List<String> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add("record-" + i);
+        }
+        return records;
+    }
+
+    private Path segmentPath(long segmentId) {
+        return dir.resolve(String.format("segment-%016d.journal", segmentId));
+    }
+
+    private List<Path> list(String glob) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static void flipByte(Path file, int position) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[position] ^= 0x5a;
+        Files.write(file, bytes);
+    }
+}
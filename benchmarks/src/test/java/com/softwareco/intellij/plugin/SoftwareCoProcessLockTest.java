@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2019 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a second JVM next to the test, the way a second IDE shares
+ * ~/.software, and checks who holds the primary lock and that each process
+ * picks up the journal changes the other made.
+ */
+public class SoftwareCoProcessLockTest {
+
+    private static final String READY = "ready";
+    private static final String PREFIX = "> ";
+
+    private Path dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("codetime-lock-test");
+    }
+
+    @Test
+    public void primaryIsTakenOverWhenTheOtherProcessReleasesIt() throws Exception {
+        Path file = dir.resolve("primary.lock");
+        Process other = start("hold", file.toString());
+        SoftwareCoProcessLock lock = new SoftwareCoProcessLock(file);
+        assertFalse("taken while the other process holds it", lock.tryLock());
+
+        // the other process unlocks and keeps running
+        other.getOutputStream().write('\n');
+        other.getOutputStream().flush();
+        assertEquals("exit code", 0, waitFor(other));
+        assertTrue("taken after the release", lock.tryLock());
+        assertTrue(lock.isHeldByCurrentProcess());
+        lock.close();
+    }
+
+    @Test
+    public void primaryIsTakenOverWhenTheOtherProcessDies() throws Exception {
+        Path file = dir.resolve("primary.lock");
+        Process other = start("hold", file.toString());
+        SoftwareCoProcessLock lock = new SoftwareCoProcessLock(file);
+        assertFalse("taken while the other process holds it", lock.tryLock());
+
+        other.destroyForcibly();
+        waitFor(other);
+        assertTrue("taken after the other process died", lock.tryLock());
+        lock.close();
+    }
+
+    @Test
+    public void lockIsHeldOncePerProcess() throws Exception {
+        Path file = dir.resolve("primary.lock");
+        SoftwareCoProcessLock first = new SoftwareCoProcessLock(file);
+        SoftwareCoProcessLock second = new SoftwareCoProcessLock(file);
+        assertTrue(first.tryLock());
+        assertFalse("taken twice in one process", second.tryLock());
+        first.unlock();
+        assertTrue("taken after the release", second.tryLock());
+        second.close();
+        first.close();
+    }
+
+    @Test
+    public void journalChangesOfTheOtherProcessArePickedUp() throws Exception {
+        Path journalDir = dir.resolve("journal");
+        SoftwareCoJournal journal = new SoftwareCoJournal(journalDir);
+        journal.append("record-0");
+        journal.append("record-1");
+
+        // the other process appends to the same tail and then acknowledges the first record
+        assertEquals("exit code", 0, waitFor(start("append", journalDir.toString(), "2", "3")));
+        assertEquals("records", 4, journal.getRecordCount());
+        assertEquals(records(0, 4), readAll(journal));
+        assertEquals("exit code", 0, waitFor(start("acknowledge", journalDir.toString())));
+        assertEquals("records", 3, journal.getRecordCount());
+        assertEquals(records(1, 4), readAll(journal));
+
+        // and it sees ours
+        journal.append("record-4");
+        journal.close();
+        Process other = start("count", journalDir.toString());
+        assertEquals("records seen by the other process", "4", readLine(other));
+        assertEquals("exit code", 0, waitFor(other));
+    }
+
+    /**
+     * Starts the other process and waits until it's done setting up
+     */
+    private Process start(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(OtherProcess.class.getName());
+        for (String arg : args) {
+            command.add(arg);
+        }
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        assertEquals("the other process started", READY, readLine(process));
+        return process;
+    }
+
+    /**
+     * The next line the other process wrote with send, anything else it
+     * writes, like its log, is skipped
+     */
+    private static String readLine(Process process) throws IOException {
+        InputStream in = process.getInputStream();
+        while (true) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            // unbuffered, so nothing meant for the next call is read ahead
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            if (text.startsWith(PREFIX)) {
+                return text.substring(PREFIX.length());
+            }
+            if (b == -1) {
+                return null;
+            }
+        }
+    }
+
+    private static int waitFor(Process process) throws InterruptedException {
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new AssertionError("the other process didn't exit");
+        }
+        return process.exitValue();
+    }
+
+    private static List<String> readAll(SoftwareCoJournal journal) throws IOException {
+        List<String> records = new ArrayList<>();
+        SoftwareCoJournal.Cursor cursor = journal.getCommittedCursor();
+        for (long segmentId : journal.sealSegments()) {
+            if (segmentId < cursor.getSegmentId()) {
+                continue;
+            }
+            long from = (segmentId == cursor.getSegmentId()) ? cursor.getOffset() : journal.getFirstRecordOffset();
+            journal.readSegment(segmentId, from, Long.MAX_VALUE, records::add);
+        }
+        return records;
+    }
+
+    private static List<String> records(int from, int to) {
+        List<String> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add("record-" + i);
+        }
+        return records;
+    }
+
+    /**
+     * The second IDE. Sends READY once it's set up, see the tests for what
+     * each command does.
+     */
+    public static class OtherProcess {
+
+        private static void send(Object message) {
+            System.out.println(PREFIX + message);
+            System.out.flush();
+        }
+
+        public static void main(String[] args) throws Exception {
+            switch (args[0]) {
+                case "hold": {
+                    SoftwareCoProcessLock lock = new SoftwareCoProcessLock(Paths.get(args[1]));
+                    if (!lock.tryLock()) {
+                        System.exit(1);
+                    }
+                    send(READY);
+                    // unlock on a line from the test, or be killed holding it
+                    System.in.read();
+                    lock.unlock();
+                    break;
+                }
+                case "append": {
+                    send(READY);
+                    SoftwareCoJournal journal = new SoftwareCoJournal(Paths.get(args[1]));
+                    for (int i = 2; i < args.length; i++) {
+                        journal.append("record-" + args[i]);
+                    }
+                    journal.close();
+                    break;
+                }
+                case "acknowledge": {
+                    send(READY);
+                    SoftwareCoJournal journal = new SoftwareCoJournal(Paths.get(args[1]));
+                    SoftwareCoJournal.Cursor cursor = journal.getCommittedCursor();
+                    long end = journal.findChunkEnd(cursor.getSegmentId(), cursor.getOffset(), 1, Long.MAX_VALUE);
+                    journal.commitCursor(new SoftwareCoJournal.Cursor(cursor.getSegmentId(), end));
+                    journal.close();
+                    break;
+                }
+                case "count": {
+                    send(READY);
+                    SoftwareCoJournal journal = new SoftwareCoJournal(Paths.get(args[1]));
+                    send(journal.getRecordCount());
+                    journal.close();
+                    break;
+                }
+                default:
+                    System.exit(2);
+            }
+            System.exit(0);
+        }
+    }
+}
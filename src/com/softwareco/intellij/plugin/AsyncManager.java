@@ -14,7 +14,8 @@ public class AsyncManager {
     private static AsyncManager instance = null;
     public static final Logger log = Logger.getInstance("AsyncManager");
 
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            1, SoftwareCoExecutor.daemonThreadFactory("Code Time scheduler"));
     private List<String> names = new ArrayList<>();
     private List<Future<?>> futures = new ArrayList<>();
 
@@ -33,6 +34,20 @@ public class AsyncManager {
         }
     }
 
+    /**
+     * Runs the service once, delayBeforeExecute seconds from now, on the
+     * executor so a slow service doesn't hold up the scheduled ones. It's
+     * dropped if the executor is too busy to take it.
+     */
+    public void executeOnceInSeconds(Runnable service, long delayBeforeExecute) {
+        executeOnceInMillis(service, TimeUnit.SECONDS.toMillis(delayBeforeExecute));
+    }
+
+    public void executeOnceInMillis(Runnable service, long delayBeforeExecute) {
+        scheduler.schedule(() -> SoftwareCoUtils.EXECUTOR_SERVICE.tryExecute(service),
+                delayBeforeExecute, TimeUnit.MILLISECONDS);
+    }
+
     public void destroyServices() {
         if (futures.size() > 0) {
             for (Future<?> future : futures) {
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.editor.Document;
+
+/**
+ * Classifies document changes without copying the changed text. It reads the
+ * fragment through its CharSequence and gets line counts from the document's
+ * line index, so a multi megabyte paste costs the same as a single keystroke.
+ */
+public class KeystrokeChangeClassifier {
+
+    /**
+     * Returns the KeystrokeEventQueue kind bits for a change
+     * @param oldLength the length of the replaced text
+     * @param newFragment the inserted text
+     */
+    public static int classify(int oldLength, CharSequence newFragment) {
+        if (oldLength > 0) {
+            //it's a delete
+            return KeystrokeEventQueue.KIND_DELETE;
+        }
+
+        int newLength = newFragment.length();
+        if (newLength == 0) {
+            return 0;
+        }
+
+        char first = newFragment.charAt(0);
+        if (first == '\n' || first == '\r') {
+            // enter followed by the editor's auto indent is still a single
+            // keystroke, anything else after the line break makes it a paste
+            for (int i = 1; i < newLength; i++) {
+                char c = newFragment.charAt(i);
+                if (c == ' ' || c == '\t' || (i == 1 && first == '\r' && c == '\n')) {
+                    continue;
+                }
+                return KeystrokeEventQueue.KIND_PASTE | KeystrokeEventQueue.KIND_NEWLINE;
+            }
+            return KeystrokeEventQueue.KIND_ADD | KeystrokeEventQueue.KIND_NEWLINE;
+        }
+
+        // it's a paste if more than one character came in
+        return (newLength > 1) ? KeystrokeEventQueue.KIND_PASTE : KeystrokeEventQueue.KIND_ADD;
+    }
+
+    /**
+     * Returns the number of line breaks within the given range of the document
+     */
+    public static int countLineBreaks(Document document, int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        int textLength = document.getTextLength();
+        int start = Math.min(offset, textLength);
+        int end = Math.min(offset + length, textLength);
+        return document.getLineNumber(end) - document.getLineNumber(start);
+    }
+}
@@ -4,106 +4,120 @@
  */
 package com.softwareco.intellij.plugin;
 
-import com.google.gson.JsonObject;
-import com.intellij.ide.plugins.PluginManager;
-import com.intellij.openapi.extensions.PluginId;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+@JsonAdapter(KeystrokeCount.PayloadAdapterFactory.class)
 public class KeystrokeCount {
 
     // TODO: backend driven, we should look at getting a list of types at some point
     private String type = "Events";
 
     // non-hardcoded attributes
-    private JsonObject source = new JsonObject();
+    // keyed by SoftwareCoFilePaths id, the paths are filled in when the payload is written
+    private final Map<Integer, KeystrokeFileInfo> source = new ConcurrentHashMap<>();
     private String version;
     private int pluginId;
-    private String keystrokes = "0"; // keystroke count
+    private final LongAdder keystrokes = new LongAdder(); // keystroke count
     // start and end are in seconds
     private long start;
     private long local_start;
     private String os;
     private String timezone;
     private KeystrokeProject project;
+    // set when the count is flushed, see SoftwareCoIdempotencyKeys
+    private String idempotencyKey;
+
+    // the minute since the epoch the events in this count happened in
+    private final long bucketMinute;
+
+    // writers that pinned this buffer, see KeystrokeCountWrapper
+    private final AtomicInteger activeWriters = new AtomicInteger();
 
     public KeystrokeCount() {
-        this.start = Math.round(System.currentTimeMillis() / 1000);
-        String appVersion = PluginManager.getPlugin(PluginId.getId("com.softwareco.intellij.plugin")).getVersion();
-        if (appVersion != null) {
-            this.version = appVersion;
-        } else {
-            this.version = SoftwareCoUtils.getVersion();
-        }
+        this(KeystrokeManager.currentMinute());
+    }
+
+    /**
+     * Creates the count for a minute bucket, it starts at the top of the minute
+     */
+    public KeystrokeCount(long bucketMinute) {
+        this.bucketMinute = bucketMinute;
+        this.start = TimeUnit.MINUTES.toSeconds(bucketMinute);
+        // the version is looked up once and cached, a new count is created on every flush
+        this.version = SoftwareCoUtils.getVersion();
         this.pluginId = SoftwareCoUtils.pluginId;
         this.os = SoftwareCoUtils.getOs();
     }
 
-    public KeystrokeCount clone() {
-        KeystrokeCount kc = new KeystrokeCount();
-        kc.keystrokes = this.keystrokes;
-        kc.start = this.start;
-        kc.local_start = this.local_start;
-        kc.version = this.version;
-        kc.pluginId = this.pluginId;
-        kc.project = this.project;
-        kc.type = this.type;
-        kc.source = this.source;
-        kc.timezone = this.timezone;
+    public KeystrokeFileInfo getSourceByFileId(int fileId) {
+        KeystrokeFileInfo fileInfo = source.get(fileId);
+        if (fileInfo != null) {
+            return fileInfo;
+        }
 
-        return kc;
+        // create one and return the one just created
+        return source.computeIfAbsent(fileId, k -> new KeystrokeFileInfo());
     }
 
-    public void resetData() {
-        this.keystrokes = "0";
-        this.source = new JsonObject();
-        if (this.project != null) {
-            this.project.resetData();
-        }
-        this.start = 0L;
-        this.local_start = 0L;
-        this.timezone = "";
+    public KeystrokeFileInfo getSourceByFileName(String fileName) {
+        return getSourceByFileId(SoftwareCoFilePaths.getInstance().getFileId(fileName));
     }
 
-    public JsonObject getSourceByFileName(String fileName) {
-        if (source.has(fileName)) {
-            return source.get(fileName).getAsJsonObject();
-        }
+    public boolean hasData() {
+        return keystrokes.sum() > 0;
+    }
 
-        // create one and return the one just created
-        JsonObject fileInfoData = new JsonObject();
-        fileInfoData.addProperty("add", 0);
-        fileInfoData.addProperty("paste", 0);
-        fileInfoData.addProperty("open", 0);
-        fileInfoData.addProperty("close", 0);
-        fileInfoData.addProperty("delete", 0);
-        fileInfoData.addProperty("length", 0);
-        fileInfoData.addProperty("netkeys", 0);
-        fileInfoData.addProperty("lines", 0);
-        fileInfoData.addProperty("linesAdded", 0);
-        fileInfoData.addProperty("linesRemoved", 0);
-        fileInfoData.addProperty("syntax", 0);
-        source.add(fileName, fileInfoData);
+    public long getKeystrokes() {
+        return keystrokes.sum();
+    }
 
-        return fileInfoData;
+    public void incrementKeystrokes() {
+        keystrokes.increment();
     }
 
-    public String getSource() {
-        return SoftwareCo.gson.toJson(source);
+    public void addKeystrokes(long count) {
+        keystrokes.add(count);
     }
 
-    public boolean hasData() {
-        if (Integer.parseInt(this.getKeystrokes()) > 0) {
-            return true;
-        }
+    void beginWrite() {
+        activeWriters.incrementAndGet();
+    }
+
+    void endWrite() {
+        activeWriters.decrementAndGet();
+    }
 
-        return false;
+    /**
+     * Waits for the writers that pinned this buffer before it was retired.
+     * They only hold it for a handful of counter updates.
+     */
+    void awaitWriters() {
+        while (activeWriters.get() > 0) {
+            Thread.yield();
+        }
     }
 
-    public String getKeystrokes() {
-        return keystrokes;
+    public long getBucketMinute() {
+        return bucketMinute;
     }
 
-    public void setKeystrokes(String keystrokes) {
-        this.keystrokes = keystrokes;
+    public long getStart() {
+        return start;
     }
 
     public void setStart(long start) {
@@ -118,6 +132,14 @@ public class KeystrokeCount {
         this.timezone = timezone;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
     public KeystrokeProject getProject() {
         return project;
     }
@@ -132,11 +154,146 @@ public class KeystrokeCount {
                 "type='" + type + '\'' +
                 ", pluginId=" + pluginId +
                 ", source=" + source +
-                ", keystrokes='" + keystrokes + '\'' +
+                ", keystrokes=" + keystrokes.sum() +
                 ", start=" + start +
                 ", local_start=" + local_start +
                 ", timezone='" + timezone + '\'' +
                 ", project=" + project +
                 '}';
     }
+
+    /**
+     * Writes the /data payload straight from the counters. The field order and
+     * types match what the reflective Gson serialization used to produce, and
+     * a stored payload reads back into a count.
+     */
+    public static class PayloadAdapterFactory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != KeystrokeCount.class) {
+                return null;
+            }
+            final TypeAdapter<KeystrokeProject> projectAdapter = gson.getAdapter(KeystrokeProject.class);
+            return (TypeAdapter<T>) new TypeAdapter<KeystrokeCount>() {
+                @Override
+                public void write(JsonWriter out, KeystrokeCount kc) throws IOException {
+                    if (kc == null) {
+                        out.nullValue();
+                        return;
+                    }
+                    out.beginObject();
+                    out.name("type").value(kc.type);
+                    out.name("source");
+                    out.beginObject();
+                    SoftwareCoFilePaths paths = SoftwareCoFilePaths.getInstance();
+                    for (Map.Entry<Integer, KeystrokeFileInfo> entry : kc.source.entrySet()) {
+                        out.name(paths.getPath(entry.getKey()));
+                        entry.getValue().write(out);
+                    }
+                    out.endObject();
+                    out.name("version").value(kc.version);
+                    out.name("pluginId").value(kc.pluginId);
+                    // the api expects the keystroke count as a string
+                    out.name("keystrokes").value(String.valueOf(kc.keystrokes.sum()));
+                    out.name("start").value(kc.start);
+                    out.name("local_start").value(kc.local_start);
+                    out.name("os").value(kc.os);
+                    out.name("timezone").value(kc.timezone);
+                    if (kc.idempotencyKey != null) {
+                        out.name(SoftwareCoIdempotencyKeys.FIELD).value(kc.idempotencyKey);
+                    }
+                    if (kc.project != null) {
+                        out.name("project");
+                        projectAdapter.write(out, kc.project);
+                    }
+                    out.endObject();
+                }
+
+                @Override
+                public KeystrokeCount read(JsonReader in) throws IOException {
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                        return null;
+                    }
+                    // the bucket comes from the start, which can come after the other fields
+                    KeystrokeCount read = new KeystrokeCount(0);
+                    Map<String, KeystrokeFileInfo> sourceByPath = new LinkedHashMap<>();
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String name = in.nextName();
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            continue;
+                        }
+                        switch (name) {
+                            case "type":
+                                read.type = in.nextString();
+                                break;
+                            case "source":
+                                in.beginObject();
+                                while (in.hasNext()) {
+                                    String path = in.nextName();
+                                    KeystrokeFileInfo fileInfo = new KeystrokeFileInfo();
+                                    fileInfo.read(in);
+                                    sourceByPath.put(path, fileInfo);
+                                }
+                                in.endObject();
+                                break;
+                            case "version":
+                                read.version = in.nextString();
+                                break;
+                            case "pluginId":
+                                read.pluginId = in.nextInt();
+                                break;
+                            case "keystrokes":
+                                // written as a string, nextLong reads either form
+                                read.keystrokes.add(in.nextLong());
+                                break;
+                            case "start":
+                                read.start = in.nextLong();
+                                break;
+                            case "local_start":
+                                read.local_start = in.nextLong();
+                                break;
+                            case "os":
+                                read.os = in.nextString();
+                                break;
+                            case "timezone":
+                                read.timezone = in.nextString();
+                                break;
+                            case SoftwareCoIdempotencyKeys.FIELD:
+                                read.idempotencyKey = in.nextString();
+                                break;
+                            case "project":
+                                read.project = projectAdapter.read(in);
+                                break;
+                            default:
+                                in.skipValue();
+                                break;
+                        }
+                    }
+                    in.endObject();
+
+                    KeystrokeCount kc = new KeystrokeCount(TimeUnit.SECONDS.toMinutes(read.start));
+                    kc.type = read.type;
+                    kc.version = read.version;
+                    kc.pluginId = read.pluginId;
+                    kc.keystrokes.add(read.keystrokes.sum());
+                    kc.start = read.start;
+                    kc.local_start = read.local_start;
+                    kc.os = read.os;
+                    kc.timezone = read.timezone;
+                    kc.idempotencyKey = read.idempotencyKey;
+                    kc.project = read.project;
+                    SoftwareCoFilePaths paths = SoftwareCoFilePaths.getInstance();
+                    for (Map.Entry<String, KeystrokeFileInfo> entry : sourceByPath.entrySet()) {
+                        kc.source.put(paths.getFileId(entry.getKey()), entry.getValue());
+                    }
+                    return kc;
+                }
+            };
+        }
+    }
 }
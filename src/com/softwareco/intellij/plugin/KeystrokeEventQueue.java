@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded single producer / single consumer ring buffer that sits in front of
+ * the document listener. documentChanged runs inside a write action, which
+ * IntelliJ only grants to one thread at a time, so there is exactly one
+ * producer. Each change is stored as a compact primitive record in O(1) and a
+ * single consumer thread drains the records in batches.
+ */
+public class KeystrokeEventQueue {
+
+    public static final Logger log = Logger.getInstance("KeystrokeEventQueue");
+
+    // record kinds
+    public static final int KIND_ADD = 1;
+    public static final int KIND_PASTE = 1 << 1;
+    public static final int KIND_DELETE = 1 << 2;
+    public static final int KIND_NEWLINE = 1 << 3;
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final int WAKEUP_DEPTH = CAPACITY / 2;
+    private static final int BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Document[] documents = new Document[CAPACITY];
+    private final int[] kinds = new int[CAPACITY];
+    private final int[] linesAdded = new int[CAPACITY];
+    private final int[] linesRemoved = new int[CAPACITY];
+    private final int[] textLengths = new int[CAPACITY];
+    private final int[] lineCounts = new int[CAPACITY];
+    private final long[] eventMinutes = new long[CAPACITY];
+
+    // tail is only written by the producer, head only by the consumer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    // whichever thread is draining reports the overflow
+    private volatile long lastReportedOverflow = 0;
+
+    private final Batch batch = new Batch();
+    private volatile Thread consumerThread;
+    private volatile boolean running = false;
+
+    /**
+     * A reusable view over the records drained in one pass
+     */
+    public static class Batch {
+        private final Document[] documents = new Document[BATCH_SIZE];
+        private final int[] kinds = new int[BATCH_SIZE];
+        private final int[] linesAdded = new int[BATCH_SIZE];
+        private final int[] linesRemoved = new int[BATCH_SIZE];
+        private final int[] textLengths = new int[BATCH_SIZE];
+        private final int[] lineCounts = new int[BATCH_SIZE];
+        private final long[] eventMinutes = new long[BATCH_SIZE];
+        private int size = 0;
+
+        public int size() {
+            return size;
+        }
+
+        public Document getDocument(int i) {
+            return documents[i];
+        }
+
+        public int getKind(int i) {
+            return kinds[i];
+        }
+
+        public int getLinesAdded(int i) {
+            return linesAdded[i];
+        }
+
+        public int getLinesRemoved(int i) {
+            return linesRemoved[i];
+        }
+
+        public int getTextLength(int i) {
+            return textLengths[i];
+        }
+
+        public int getLineCount(int i) {
+            return lineCounts[i];
+        }
+
+        /**
+         * The minute since the epoch the change happened in
+         */
+        public long getEventMinute(int i) {
+            return eventMinutes[i];
+        }
+    }
+
+    /**
+     * Called on the producer thread. Returns false and counts the record as
+     * an overflow when the consumer has fallen a full ring behind.
+     */
+    public boolean offer(Document document, int kind, int linesAdded, int linesRemoved,
+                         int textLength, int lineCount, long eventMinute) {
+        long t = tail.get();
+        long depth = t - head.get();
+        if (depth >= CAPACITY) {
+            overflowCount.incrementAndGet();
+            return false;
+        }
+        int idx = (int) (t & MASK);
+        documents[idx] = document;
+        kinds[idx] = kind;
+        this.linesAdded[idx] = linesAdded;
+        this.linesRemoved[idx] = linesRemoved;
+        textLengths[idx] = textLength;
+        lineCounts[idx] = lineCount;
+        eventMinutes[idx] = eventMinute;
+        // publish the record to the consumer
+        tail.lazySet(t + 1);
+        if (depth == WAKEUP_DEPTH) {
+            // a burst is filling the ring, don't wait out the idle park
+            Thread consumer = consumerThread;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves up to one batch of records into the reusable batch
+     */
+    protected Batch drain() {
+        long h = head.get();
+        long available = tail.get() - h;
+        int count = (int) Math.min(available, BATCH_SIZE);
+        for (int i = 0; i < count; i++) {
+            int idx = (int) ((h + i) & MASK);
+            batch.documents[i] = documents[idx];
+            batch.kinds[i] = kinds[idx];
+            batch.linesAdded[i] = linesAdded[idx];
+            batch.linesRemoved[i] = linesRemoved[idx];
+            batch.textLengths[i] = textLengths[idx];
+            batch.lineCounts[i] = lineCounts[idx];
+            batch.eventMinutes[i] = eventMinutes[idx];
+            // don't hold on to the document once it's been handed off
+            documents[idx] = null;
+        }
+        batch.size = count;
+        head.lazySet(h + count);
+        return batch;
+    }
+
+    public synchronized void start(Consumer<Batch> handler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(() -> {
+            while (running) {
+                drainAll(handler);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            // the final drain, stop waits for it instead of draining alongside us
+            drainAll(handler);
+        }, "Code Time event consumer");
+        thread.setDaemon(true);
+        consumerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the consumer thread and hands any records still in the ring to the
+     * handler. The consumer does the final drain, the caller only drains once
+     * the consumer is gone so the ring never has two consumers.
+     */
+    public void stop(Consumer<Batch> handler) {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = consumerThread;
+            consumerThread = null;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                // it's still in the handler, it drains what's left when it gets out
+                log.warn("Code Time: Document change consumer is still draining, not waiting for it");
+                return;
+            }
+        }
+        // records added after the consumer's final drain
+        drainAll(handler);
+    }
+
+    private void drainAll(Consumer<Batch> handler) {
+        Batch drained = drain();
+        while (drained.size() > 0) {
+            try {
+                handler.accept(drained);
+            } catch (Exception e) {
+                log.warn("Code Time: Unable to process document change events, error: " + e.getMessage());
+            }
+            processedCount.addAndGet(drained.size());
+            Arrays.fill(drained.documents, 0, drained.size, null);
+            drained = drain();
+        }
+
+        long overflow = overflowCount.get();
+        if (overflow != lastReportedOverflow) {
+            log.warn("Code Time: Document change queue overflowed, dropped " +
+                    (overflow - lastReportedOverflow) + " events");
+            lastReportedOverflow = overflow;
+        }
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public int getQueueDepth() {
+        return (int) (tail.get() - head.get());
+    }
+}
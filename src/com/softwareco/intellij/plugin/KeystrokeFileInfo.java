@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per file metrics for a KeystrokeCount. The values live in a single
+ * field-indexed long array so updates from the listener threads are
+ * lock free and don't allocate. They only become json when the payload
+ * is written.
+ */
+public class KeystrokeFileInfo {
+
+    /**
+     * The per file payload fields, declared in payload order
+     */
+    public enum Metric {
+        ADD("add", true),
+        PASTE("paste", true),
+        OPEN("open", true),
+        CLOSE("close", true),
+        DELETE("delete", true),
+        LENGTH("length", false),
+        NETKEYS("netkeys", true),
+        LINES("lines", false),
+        LINES_ADDED("linesAdded", true),
+        LINES_REMOVED("linesRemoved", true),
+        SYNTAX("syntax", false);
+
+        private final String key;
+        private final boolean additive;
+
+        Metric(String key, boolean additive) {
+            this.key = key;
+            this.additive = additive;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        // length, lines, and syntax are not additive
+        public boolean isAdditive() {
+            return additive;
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private final AtomicLongArray values = new AtomicLongArray(METRICS.length);
+
+    public void increment(Metric metric) {
+        values.incrementAndGet(metric.ordinal());
+    }
+
+    /**
+     * Adds to the additive metrics and replaces the value of the others
+     */
+    public void update(Metric metric, long value) {
+        if (metric.isAdditive()) {
+            values.addAndGet(metric.ordinal(), value);
+        } else {
+            values.set(metric.ordinal(), value);
+        }
+    }
+
+    public long get(Metric metric) {
+        if (metric == Metric.NETKEYS) {
+            // "netkeys" = add - delete
+            return values.get(Metric.ADD.ordinal()) - values.get(Metric.DELETE.ordinal());
+        }
+        return values.get(metric.ordinal());
+    }
+
+    public void write(JsonWriter out) throws IOException {
+        out.beginObject();
+        for (Metric metric : METRICS) {
+            out.name(metric.getKey()).value(get(metric));
+        }
+        out.endObject();
+    }
+
+    /**
+     * Reads the values written by write, netkeys is derived from add and delete
+     */
+    public void read(JsonReader in) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            Metric metric = null;
+            for (Metric candidate : METRICS) {
+                if (candidate.getKey().equals(name)) {
+                    metric = candidate;
+                    break;
+                }
+            }
+            if (metric == null || metric == Metric.NETKEYS || in.peek() == JsonToken.NULL) {
+                in.skipValue();
+                continue;
+            }
+            values.set(metric.ordinal(), in.nextLong());
+        }
+        in.endObject();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Metric metric : METRICS) {
+            if (sb.length() > 1) {
+                sb.append(",");
+            }
+            sb.append(metric.getKey()).append("=").append(get(metric));
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -4,13 +4,21 @@
  */
 package com.softwareco.intellij.plugin;
 
-import com.intellij.openapi.project.Project;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class KeystrokeManager {
 
     private static KeystrokeManager instance = null;
 
-    KeystrokeCountWrapper wrapper = new KeystrokeCountWrapper();
+    // an hour of minute buckets per project, the flusher runs well within that
+    private static final int BUCKET_COUNT = 64;
+
+    // one accumulator per project, they're all flushed together on the payload interval
+    private final Map<String, KeystrokeCountWrapper> wrappers = new ConcurrentHashMap<>();
 
     /**
      * Protected constructor to defeat instantiation
@@ -26,51 +34,154 @@ public class KeystrokeManager {
         return instance;
     }
 
-    public void addKeystrokeWrapperIfNoneExists(Project project) {
-        if (wrapper == null || wrapper.getProjectName() == null) {
-            wrapper = new KeystrokeCountWrapper();
-            wrapper.setProjectName(project.getName());
-        }
+    /**
+     * Returns the minute since the epoch a timestamp in milliseconds falls into
+     */
+    public static long toMinute(long timeMillis) {
+        return timeMillis / TimeUnit.MINUTES.toMillis(1);
     }
 
-    public void resetData() {
-        if (wrapper != null && wrapper.getKeystrokeCount() != null) {
-            wrapper.getKeystrokeCount().resetData();;
-        }
+    public static long currentMinute() {
+        return toMinute(System.currentTimeMillis());
     }
 
-    public KeystrokeCount getKeystrokeCount() {
+    /**
+     * Returns the project's accumulator, creating it if this is the first
+     * event we've seen for the project
+     */
+    public KeystrokeCountWrapper getKeystrokeWrapper(String projectName, String projectFilepath) {
+        String key = (projectName != null) ? projectName : "";
+        KeystrokeCountWrapper wrapper = wrappers.get(key);
         if (wrapper != null) {
-            return wrapper.getKeystrokeCount();
+            return wrapper;
         }
-        return null;
+        return wrappers.computeIfAbsent(key, k -> createKeystrokeCountWrapper(projectName, projectFilepath));
     }
 
-    public void setKeystrokeCount(String projectName, KeystrokeCount keystrokeCount) {
-        if (wrapper == null) {
-            wrapper = new KeystrokeCountWrapper();
-        }
-        wrapper.setKeystrokeCount(keystrokeCount);
+    private KeystrokeCountWrapper createKeystrokeCountWrapper(String projectName, String projectFilepath) {
+        KeystrokeProject keystrokeProject = new KeystrokeProject( projectName, projectFilepath );
+
+        KeystrokeCountWrapper wrapper = new KeystrokeCountWrapper(keystrokeProject);
         wrapper.setProjectName(projectName);
+        return wrapper;
     }
 
-    public KeystrokeCountWrapper getKeystrokeWrapper() {
-        return wrapper;
+    public Collection<KeystrokeCountWrapper> getKeystrokeWrappers() {
+        return wrappers.values();
     }
 
+    /**
+     * Aggregates a project's events into one KeystrokeCount per minute, keyed
+     * by the minute the event happened in rather than when it's processed.
+     * The buckets sit in a fixed ring indexed by minute. Writers pin a bucket
+     * without blocking and the flusher retires buckets by swapping them out
+     * of the ring, then serializes each one once its last writer let go of it.
+     */
     public class KeystrokeCountWrapper {
         // KeystrokeCount cache metadata
-        protected KeystrokeCount keystrokeCount;
+        protected final KeystrokeProject project;
+        protected final AtomicReferenceArray<KeystrokeCount> buckets = new AtomicReferenceArray<>(BUCKET_COUNT);
+        // buckets of other minutes that had to leave the ring before the flusher got to them
+        protected final Queue<KeystrokeCount> displaced = new ConcurrentLinkedQueue<>();
         protected String projectName = "";
-        protected String currentFileName = "";
+        protected int currentFileId = -1;
         protected int currentTextLength = 0;
 
-        public KeystrokeCount getKeystrokeCount() {
-            return keystrokeCount;
+        public KeystrokeCountWrapper(KeystrokeProject project) {
+            this.project = project;
+        }
+
+        public KeystrokeProject getProject() {
+            return project;
+        }
+
+        /**
+         * Pins the current minute's bucket for writing
+         */
+        public KeystrokeCount acquireKeystrokeCount() {
+            return acquireKeystrokeCount(currentMinute());
+        }
+
+        /**
+         * Pins the bucket of the given minute for writing. Every call has to
+         * be paired with releaseKeystrokeCount.
+         */
+        public KeystrokeCount acquireKeystrokeCount(long minute) {
+            int slot = (int) (minute % BUCKET_COUNT);
+            while (true) {
+                KeystrokeCount current = buckets.get(slot);
+                if (current == null) {
+                    KeystrokeCount fresh = new KeystrokeCount(minute);
+                    fresh.setProject(project);
+                    if (!buckets.compareAndSet(slot, null, fresh)) {
+                        continue;
+                    }
+                    current = fresh;
+                }
+                if (current.getBucketMinute() < minute) {
+                    // the flusher fell a whole ring behind and the slot still
+                    // holds an older minute, it's sent on the next flush
+                    KeystrokeCount fresh = new KeystrokeCount(minute);
+                    fresh.setProject(project);
+                    if (buckets.compareAndSet(slot, current, fresh)) {
+                        displaced.add(current);
+                    }
+                    continue;
+                }
+                if (current.getBucketMinute() > minute) {
+                    // an event from a ring ago, it gets a bucket of its own
+                    KeystrokeCount late = new KeystrokeCount(minute);
+                    late.setProject(project);
+                    late.beginWrite();
+                    displaced.add(late);
+                    return late;
+                }
+                current.beginWrite();
+                if (buckets.get(slot) == current) {
+                    return current;
+                }
+                // it was retired in the meantime, move on to a fresh bucket
+                current.endWrite();
+            }
+        }
+
+        public void releaseKeystrokeCount(KeystrokeCount current) {
+            current.endWrite();
         }
 
-        public void setKeystrokeCount(KeystrokeCount keystrokeCount) {
-            this.keystrokeCount = keystrokeCount;
+        /**
+         * Swaps the finished buckets out of the ring and returns the ones with
+         * keystrokes, oldest first, after every writer has released them. The
+         * current minute's bucket is retired too once it has keystrokes.
+         */
+        public List<KeystrokeCount> retireKeystrokeCounts() {
+            long minute = currentMinute();
+            List<KeystrokeCount> retired = new ArrayList<>();
+            for (int slot = 0; slot < BUCKET_COUNT; slot++) {
+                KeystrokeCount current = buckets.get(slot);
+                if (current == null) {
+                    continue;
+                }
+                if (!current.hasData() && current.getBucketMinute() >= minute) {
+                    // still collecting
+                    continue;
+                }
+                if (buckets.compareAndSet(slot, current, null)) {
+                    current.awaitWriters();
+                    if (current.hasData()) {
+                        retired.add(current);
+                    }
+                }
+            }
+            KeystrokeCount stale;
+            while ((stale = displaced.poll()) != null) {
+                stale.awaitWriters();
+                if (stale.hasData()) {
+                    retired.add(stale);
+                }
+            }
+            retired.sort(Comparator.comparingLong(KeystrokeCount::getBucketMinute));
+            return retired;
         }
 
         public String getProjectName() {
@@ -81,8 +192,8 @@ public class KeystrokeManager {
             this.projectName = projectName;
         }
 
-        public void setCurrentFileName(String currentFileName) {
-            this.currentFileName = currentFileName;
+        public void setCurrentFileId(int currentFileId) {
+            this.currentFileId = currentFileId;
         }
 
         public int getCurrentTextLength() {
@@ -5,7 +5,6 @@
 package com.softwareco.intellij.plugin;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ApplicationComponent;
@@ -15,6 +14,7 @@ import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.util.messages.MessageBus;
 import com.intellij.util.messages.MessageBusConnection;
 import org.apache.log4j.Level;
@@ -54,14 +54,7 @@ public class SoftwareCo implements ApplicationComponent {
                 if (retry_counter == 0) {
                     showOfflinePrompt();
                 }
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(check_online_interval_ms);
-                        initComponent();
-                    } catch (Exception e) {
-                        System.err.println(e);
-                    }
-                }).start();
+                asyncManager.executeOnceInSeconds(() -> initComponent(), check_online_interval_ms / 1000);
             } else {
                 // create the anon user
                 String jwt = SoftwareCoUtils.createAnonymousUser(serverIsOnline);
@@ -70,14 +63,7 @@ public class SoftwareCo implements ApplicationComponent {
                     if (retry_counter == 0) {
                         showOfflinePrompt();
                     }
-                    new Thread(() -> {
-                        try {
-                            Thread.sleep(check_online_interval_ms);
-                            initComponent();
-                        } catch (Exception e) {
-                            System.err.println(e);
-                        }
-                    }).start();
+                    asyncManager.executeOnceInSeconds(() -> initComponent(), check_online_interval_ms / 1000);
                 } else {
                     initializePlugin(true);
                 }
@@ -96,6 +82,8 @@ public class SoftwareCo implements ApplicationComponent {
 
         gson = new Gson();
 
+        eventMgr.startEventQueue();
+
         setupEventListeners();
 
         // add the kpm payload one_min scheduler
@@ -114,25 +102,30 @@ public class SoftwareCo implements ApplicationComponent {
         asyncManager.scheduleService(
                 hourlyRunner, "musicTrackRunner", 45, 60 * 60);
 
-        // run the music manager task every 15 seconds
-        final Runnable musicTrackRunner = () -> musicMgr.processMusicTrackInfo();
+        // run the music manager task every 15 seconds, one IDE reports the track for all of them
+        final Runnable musicTrackRunner = () -> {
+            if (sessionMgr.isPrimaryInstance()) {
+                musicMgr.processMusicTrackInfo();
+            }
+        };
         asyncManager.scheduleService(
                 musicTrackRunner, "musicTrackRunner", 30, 15);
 
-        final Runnable userStatusRunner = () -> SoftwareCoUtils.getUserStatus();
+        // keep the offline backlog compact between uploads, a pass reads the
+        // journal so it runs on the executor rather than the scheduler's thread,
+        // a pass the busy executor turns away waits for the next one
+        final Runnable offlineCompactionRunner = () -> SoftwareCoUtils.EXECUTOR_SERVICE.tryExecute(
+                sessionMgr::compactOfflineData);
+        asyncManager.scheduleService(
+                offlineCompactionRunner, "offlineCompactionRunner", 300, 60 * 10);
+
+        final Runnable userStatusRunner = () -> SoftwareCoUtils.getUserStatusAsync();
         asyncManager.scheduleService(
                 userStatusRunner, "userStatusRunner", 60, 90);
 
         eventMgr.setAppIsReady(true);
 
-        new Thread(() -> {
-            try {
-                Thread.sleep(5000);
-                initializeUserInfo(initializedUser);
-            } catch (Exception e) {
-                System.err.println(e);
-            }
-        }).start();
+        asyncManager.executeOnceInSeconds(() -> initializeUserInfo(initializedUser), 5);
 
     }
 
@@ -140,14 +133,9 @@ public class SoftwareCo implements ApplicationComponent {
         SoftwareCoUtils.sendHeartbeat("HOURLY");
 
         SoftwareCoRepoManager repoMgr = SoftwareCoRepoManager.getInstance();
-        new Thread(() -> {
-            try {
-                Thread.sleep(60000);
-                repoMgr.getHistoricalCommits(getRootPath());
-            } catch (Exception e) {
-                System.err.println(e);
-            }
-        }).start();
+        asyncManager.executeOnceInSeconds(() -> repoMgr.getHistoricalCommits(getRootPath()), 60);
+
+        log.info("Code Time: " + SoftwareCoUtils.EXECUTOR_SERVICE.getStats());
     }
 
     private void initializeUserInfo(boolean initializedUser) {
@@ -159,38 +147,25 @@ public class SoftwareCo implements ApplicationComponent {
             this.sendInstallPayload();
 
             // ask the user to login one time only
-            new Thread(() -> {
-                try {
-                    Thread.sleep(5000);
-                    sessionMgr.showLoginPrompt();
-                }
-                catch (Exception e){
-                    System.err.println(e);
-                }
-            }).start();
+            asyncManager.executeOnceInSeconds(() -> sessionMgr.showLoginPrompt(), 5);
         }
 
-        new Thread(() -> {
-            try {
-                Thread.sleep(1000 * 10);
-                sessionMgr.fetchDailyKpmSessionInfo();
-            }
-            catch (Exception e){
-                System.err.println(e);
-            }
-        }).start();
+        asyncManager.executeOnceInSeconds(() -> sessionMgr.fetchDailyKpmSessionInfo(), 10);
 
         SoftwareCoUtils.sendHeartbeat("INITIALIZED");
     }
 
     protected void sendInstallPayload() {
-        KeystrokeManager keystrokeManager = KeystrokeManager.getInstance();
         String fileName = "Untitled";
-        eventMgr.initializeKeystrokeObjectGraph(fileName, "Unnamed", "");
-        JsonObject fileInfo = keystrokeManager.getKeystrokeCount().getSourceByFileName(fileName);
-        eventMgr.updateFileInfoValue(fileInfo, "add", 1);
-        keystrokeManager.getKeystrokeCount().setKeystrokes(String.valueOf(1));
-        eventMgr.processKeystrokes(keystrokeManager.getKeystrokeWrapper());
+        KeystrokeManager.KeystrokeCountWrapper wrapper = eventMgr.initializeKeystrokeObjectGraph(fileName, "Unnamed", "");
+        KeystrokeCount keystrokeCount = wrapper.acquireKeystrokeCount();
+        try {
+            keystrokeCount.getSourceByFileName(fileName).increment(KeystrokeFileInfo.Metric.ADD);
+            keystrokeCount.incrementKeystrokes();
+        } finally {
+            wrapper.releaseKeystrokeCount(keystrokeCount);
+        }
+        eventMgr.processKeystrokes(wrapper);
     }
 
     protected String getRootPath() {
@@ -215,6 +190,9 @@ public class SoftwareCo implements ApplicationComponent {
             connection = bus.connect();
             connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new SoftwareCoFileEditorListener());
 
+            // rename, move or delete a file
+            connection.subscribe(VirtualFileManager.VFS_CHANGES, new SoftwareCoFileSystemListener());
+
             // edit document
             EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new SoftwareCoDocumentListener());
         });
@@ -235,9 +213,24 @@ public class SoftwareCo implements ApplicationComponent {
 
         asyncManager.destroyServices();
 
+        // hand off any queued document changes before the final flush
+        eventMgr.stopEventQueue();
+
         // process one last time
-        // this will ensure we process the latest keystroke updates
-        eventMgr.processKeystrokesData();
+        // this will ensure we process the latest keystroke updates, the
+        // offline backlog is left for the next start rather than waited on
+        sessionMgr.stopOfflineUploads();
+        eventMgr.flushKeystrokes(SoftwareCoEventManager.finalFlushTimeoutMillis);
+
+        // sync whatever couldn't be sent
+        SoftwareCoJournal.getInstance().close();
+
+        // write the session changes that are still pending
+        SoftwareCoSessionStore.getInstance().flush();
+
+        SoftwareCoHttpClient.shutdown();
+
+        SoftwareCoUtils.EXECUTOR_SERVICE.shutdown();
     }
 
     public static void setLoggingLevel() {
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Circuit breaker in front of the Software api, every call asks it first.
+ * After failureThreshold calls in a row can't reach the api it opens, and
+ * calls fail right away without touching the network. When the open window
+ * has passed, the next call is let through as the probe while the others
+ * keep failing fast. The probe reaching the api closes the breaker. If it
+ * fails, the breaker opens again for twice as long, up to maxOpenMillis.
+ *
+ * The windows are jittered so the IDEs that lost the api at the same moment
+ * don't all probe it at the same moment.
+ */
+public class SoftwareCoCircuitBreaker {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoCircuitBreaker");
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static int failureThreshold = 3;
+    public static long initialOpenMillis = 30 * 1000;
+    public static long maxOpenMillis = 10 * 60 * 1000;
+    // a probe that hasn't finished by then is given up on, longer than any call's timeouts
+    public static long probeTimeoutMillis = 2 * 60 * 1000;
+
+    private static SoftwareCoCircuitBreaker instance = null;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    // times the breaker opened since it was last closed
+    private int openCount = 0;
+    private long openUntil = 0;
+    private long probeStarted = 0;
+
+    public static synchronized SoftwareCoCircuitBreaker getInstance() {
+        if (instance == null) {
+            instance = new SoftwareCoCircuitBreaker();
+        }
+        return instance;
+    }
+
+    /**
+     * True if the call can be made, a call let through after the open window is the probe
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < openUntil) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeStarted = now;
+                return true;
+            default:
+                // one probe at a time
+                if (now - probeStarted < probeTimeoutMillis) {
+                    return false;
+                }
+                probeStarted = now;
+                return true;
+        }
+    }
+
+    /**
+     * The call got an answer from the api, even an error one
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Code Time: The Software api is reachable again");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openCount = 0;
+    }
+
+    /**
+     * The call couldn't reach the api, or the api failed with a server error
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            open();
+        }
+    }
+
+    /**
+     * The call failed without telling us anything about the api, like a
+     * payload that couldn't be built or a bad certificate. If it was the
+     * probe, the next call probes.
+     */
+    public synchronized void recordInconclusive() {
+        if (state == State.HALF_OPEN) {
+            probeStarted = 0;
+        }
+    }
+
+    /**
+     * True unless the breaker would turn a call away, asking doesn't use up the probe
+     */
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED || (state == State.OPEN && System.currentTimeMillis() >= openUntil);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        long window = Math.min(maxOpenMillis, initialOpenMillis << Math.min(openCount, 16));
+        // wait between half the window and all of it
+        long wait = window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+        openCount++;
+        openUntil = System.currentTimeMillis() + wait;
+        state = State.OPEN;
+        log.info("Code Time: The Software api is unreachable, not calling it for the next " + (wait / 1000) + " seconds");
+    }
+}
@@ -14,6 +14,9 @@ public class SoftwareCoDocumentListener implements DocumentListener {
 
     @Override
     public void beforeDocumentChange(DocumentEvent documentEvent) {
+        Document document = documentEvent.getDocument();
+
+        eventMgr.handleBeforeChangeEvents(document, documentEvent);
     }
 
     @Override
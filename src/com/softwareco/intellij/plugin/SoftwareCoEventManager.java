@@ -1,8 +1,5 @@
 package com.softwareco.intellij.plugin;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
-import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
@@ -11,25 +8,38 @@ import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
-import org.apache.http.client.methods.HttpPost;
+import com.softwareco.intellij.plugin.KeystrokeFileInfo.Metric;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.ZonedDateTime;
-import java.util.Date;
-import java.util.TimeZone;
-import java.util.stream.Stream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SoftwareCoEventManager {
 
     public static final Logger log = Logger.getInstance("SoftwareCoEventManager");
 
+    // how long the IDE waits on the last keystroke send when it closes
+    public static long finalFlushTimeoutMillis = 5000;
+
     private static SoftwareCoEventManager instance = null;
 
     private KeystrokeManager keystrokeMgr = KeystrokeManager.getInstance();
     private SoftwareCoSessionManager sessionMgr = SoftwareCoSessionManager.getInstance();
+    private SoftwareCoLineCounter lineCounter = SoftwareCoLineCounter.getInstance();
+    private SoftwareCoFilePaths filePaths = SoftwareCoFilePaths.getInstance();
+    private KeystrokeEventQueue eventQueue = new KeystrokeEventQueue();
+    // line breaks removed by the change in progress, only touched on the event dispatch thread
+    private Document pendingDocument = null;
+    private int pendingOffset = 0;
+    private int pendingLinesRemoved = 0;
     private boolean appIsReady = false;
+    // only one upload of the offline backlog at a time
+    private CompletableFuture<Void> offlineUpload = CompletableFuture.completedFuture(null);
 
     public static SoftwareCoEventManager getInstance() {
         if (instance == null) {
@@ -42,53 +52,60 @@ public class SoftwareCoEventManager {
         this.appIsReady = appIsReady;
     }
 
-    public void handleFileOpenedEvents(String fileName, Project project) {
-        KeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount();
-        if (keystrokeCount == null) {
-            initializeKeystrokeObjectGraph(fileName, project.getName(), project.getProjectFilePath());
-            keystrokeCount = keystrokeMgr.getKeystrokeCount();
-        }
-        JsonObject fileInfo = keystrokeCount.getSourceByFileName(fileName);
-        if (fileInfo == null) {
-            return;
-        }
-        updateFileInfoValue(fileInfo,"open", 1);
+    public void handleFileOpenedEvents(VirtualFile file, Project project) {
+        String fileName = file.getPath();
+        KeystrokeManager.KeystrokeCountWrapper wrapper = initializeKeystrokeObjectGraph(
+                fileName, project.getName(), project.getBasePath());
         log.info("Code Time: file opened: " + fileName);
+        int fileId = filePaths.getFileId(file, project.getBasePath());
 
         // update the line count since we're here
-        int lines = getLineCount(fileName);
-        updateFileInfoValue(fileInfo, "lines", lines);
-    }
+        int lines = lineCounter.getLineCount(file);
 
-    public void handleFileClosedEvents(String fileName, Project project) {
-        KeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount();
-        if (keystrokeCount == null) {
-            initializeKeystrokeObjectGraph(fileName, project.getName(), project.getProjectFilePath());
-            keystrokeCount = keystrokeMgr.getKeystrokeCount();
+        KeystrokeCount keystrokeCount = wrapper.acquireKeystrokeCount();
+        try {
+            KeystrokeFileInfo fileInfo = keystrokeCount.getSourceByFileId(fileId);
+            fileInfo.increment(Metric.OPEN);
+            fileInfo.update(Metric.LINES, lines);
+        } finally {
+            wrapper.releaseKeystrokeCount(keystrokeCount);
         }
-        JsonObject fileInfo = keystrokeCount.getSourceByFileName(fileName);
-        if (fileInfo == null) {
-            return;
+    }
+
+    public void handleFileClosedEvents(VirtualFile file, Project project) {
+        int fileId = filePaths.getFileId(file, project.getBasePath());
+        String fileName = filePaths.getPath(fileId);
+        KeystrokeManager.KeystrokeCountWrapper wrapper = initializeKeystrokeObjectGraph(
+                fileName, project.getName(), project.getBasePath());
+        KeystrokeCount keystrokeCount = wrapper.acquireKeystrokeCount();
+        try {
+            keystrokeCount.getSourceByFileId(fileId).increment(Metric.CLOSE);
+        } finally {
+            wrapper.releaseKeystrokeCount(keystrokeCount);
         }
-        updateFileInfoValue(fileInfo,"close", 1);
         log.info("Code Time: file closed: " + fileName);
     }
 
-    protected int getLineCount(String fileName) {
-        Path path = Paths.get(fileName);
-        try {
-            Stream<String> stream = Files.lines(path);
-            int count = (int) stream.count();
-            stream.close();
-            return count;
-        } catch (Throwable e) {
-            log.warn("Code Time: unable to get the line count for file " + fileName);
-            return 0;
+    /**
+     * Remembers how many lines the change is about to remove. The document
+     * still has its old line index at this point.
+     * @param document
+     * @param documentEvent
+     */
+    public void handleBeforeChangeEvents(Document document, DocumentEvent documentEvent) {
+        if (document == null) {
+            return;
         }
+        pendingDocument = document;
+        pendingOffset = documentEvent.getOffset();
+        pendingLinesRemoved = KeystrokeChangeClassifier.countLineBreaks(
+                document, documentEvent.getOffset(), documentEvent.getOldLength());
     }
 
     /**
-     * Handles character change events in a file
+     * Handles character change events in a file. This runs on the event
+     * dispatch thread so it only classifies the change and queues a compact
+     * record, the consumer thread does the rest in batches.
      * @param document
      * @param documentEvent
      */
@@ -98,141 +115,165 @@ public class SoftwareCoEventManager {
             return;
         }
 
-        ApplicationManager.getApplication().executeOnPooledThread(() -> {
-            FileDocumentManager instance = FileDocumentManager.getInstance();
-            if (instance != null) {
-                VirtualFile file = instance.getFile(document);
-                if (file != null && !file.isDirectory()) {
-                    Editor[] editors = EditorFactory.getInstance().getEditors(document);
-                    if (editors != null && editors.length > 0) {
-                        String fileName = file.getPath();
-                        Project project = editors[0].getProject();
-                        String projectName = null;
-                        String projectFilepath = null;
-                        if (project != null) {
-                            projectName = project.getName();
-                            projectFilepath = project.getBasePath();
-
-                            keystrokeMgr.addKeystrokeWrapperIfNoneExists(project);
-                            initializeKeystrokeObjectGraph(fileName, projectName, projectFilepath);
-
-                            KeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount();
-                            if (keystrokeCount != null) {
-
-                                KeystrokeManager.KeystrokeCountWrapper wrapper = keystrokeMgr.getKeystrokeWrapper();
-
-
-                                // Set the current text length and the current file and the current project
-                                //
-                                int currLen = document.getTextLength();
-                                wrapper.setCurrentFileName(fileName);
-                                wrapper.setCurrentTextLength(currLen);
-
-                                JsonObject fileInfo = keystrokeCount.getSourceByFileName(fileName);
-                                if (documentEvent.getOldLength() > 0) {
-                                    //it's a delete
-                                    updateFileInfoValue(fileInfo, "delete", 1);
-                                } else {
-                                    // it's an add
-                                    if (documentEvent.getNewLength() > 1) {
-                                        // it's a paste
-                                        updateFileInfoValue(fileInfo, "paste", 1);
-                                    } else {
-                                        updateFileInfoValue(fileInfo, "add", 1);
-                                    }
-                                }
-
-                                int incrementedCount = Integer.parseInt(keystrokeCount.getKeystrokes()) + 1;
-                                keystrokeCount.setKeystrokes(String.valueOf(incrementedCount));
-
-                                String newFrag = documentEvent.getNewFragment().toString();
-                                if (newFrag.matches("^\n.*") || newFrag.matches("^\n\r.*")) {
-                                    // it's a new line
-                                    updateFileInfoValue(fileInfo, "linesAdded", 1);
-                                }
-                                int documentLineCount = document.getLineCount();
-                                updateFileInfoValue(fileInfo, "lines", documentLineCount);
-                            }
-                        }
-                    }
-
-                }
-            }
-        });
-    }
-
-    public void updateFileInfoValue(JsonObject fileInfo, String key, int incrementVal) {
-        JsonPrimitive keysVal = fileInfo.getAsJsonPrimitive(key);
-        if (key.equals("length") || key.equals("lines")) {
-            // length, lines, or syntax are not additive
-            fileInfo.addProperty(key, incrementVal);
-        } else {
-            int totalVal = keysVal.getAsInt() + incrementVal;
-            fileInfo.addProperty(key, totalVal);
+        int kind = KeystrokeChangeClassifier.classify(documentEvent.getOldLength(), documentEvent.getNewFragment());
+        if (kind == 0) {
+            return;
         }
 
-        if (key.equals("add") || key.equals("delete")) {
-            // update the netkeys and the keys
-            // "netkeys" = add - delete
-            int deleteCount = fileInfo.get("delete").getAsInt();
-            int addCount = fileInfo.get("add").getAsInt();
-            fileInfo.addProperty("netkeys", (addCount - deleteCount));
+        int linesAdded = KeystrokeChangeClassifier.countLineBreaks(
+                document, documentEvent.getOffset(), documentEvent.getNewLength());
+        int linesRemoved = 0;
+        if (pendingDocument == document && pendingOffset == documentEvent.getOffset()) {
+            linesRemoved = pendingLinesRemoved;
         }
+        pendingDocument = null;
+
+        // the event is bucketed by when it happened, not by when the consumer gets to it
+        eventQueue.offer(document, kind, linesAdded, linesRemoved, document.getTextLength(),
+                document.getLineCount(), KeystrokeManager.currentMinute());
     }
 
-    public void initializeKeystrokeObjectGraph(String fileName, String projectName, String projectFilepath) {
-        // initialize it in case it's not initialized yet
-        initializeKeystrokeCount(projectName, projectFilepath);
+    public void startEventQueue() {
+        eventQueue.start(this::processChangeEvents);
+    }
 
-        KeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount();
+    public void stopEventQueue() {
+        eventQueue.stop(this::processChangeEvents);
+    }
 
-        //
-        // Make sure we have the project name and directory info
-        updateKeystrokeProject(projectName, fileName, keystrokeCount);
+    /**
+     * Aggregates the queued change records by document and minute so the file
+     * and project are only resolved once per document in a batch
+     */
+    protected void processChangeEvents(KeystrokeEventQueue.Batch batch) {
+        Map<Document, List<DocumentChanges>> changesByDocument = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Document document = batch.getDocument(i);
+            long minute = batch.getEventMinute(i);
+            List<DocumentChanges> documentChanges = changesByDocument.get(document);
+            if (documentChanges == null) {
+                documentChanges = new ArrayList<>(1);
+                changesByDocument.put(document, documentChanges);
+            }
+            DocumentChanges changes = documentChanges.isEmpty() ? null : documentChanges.get(documentChanges.size() - 1);
+            if (changes == null || changes.minute != minute) {
+                changes = new DocumentChanges(minute);
+                documentChanges.add(changes);
+            }
+            changes.add(batch.getKind(i), batch.getLinesAdded(i), batch.getLinesRemoved(i),
+                    batch.getTextLength(i), batch.getLineCount(i));
+        }
+
+        FileDocumentManager instance = FileDocumentManager.getInstance();
+        if (instance == null) {
+            return;
+        }
+        for (Map.Entry<Document, List<DocumentChanges>> entry : changesByDocument.entrySet()) {
+            Document document = entry.getKey();
+            VirtualFile file = instance.getFile(document);
+            if (file == null || file.isDirectory()) {
+                continue;
+            }
+            Editor[] editors = EditorFactory.getInstance().getEditors(document);
+            if (editors == null || editors.length == 0) {
+                continue;
+            }
+            Project project = editors[0].getProject();
+            if (project == null) {
+                continue;
+            }
+            // the path is only looked up the first time we see the file
+            int fileId = filePaths.getFileId(file, project.getBasePath());
+
+            KeystrokeManager.KeystrokeCountWrapper wrapper = keystrokeMgr.getKeystrokeWrapper(
+                    project.getName(), project.getBasePath());
+            List<DocumentChanges> documentChanges = entry.getValue();
+
+            // Set the current text length and the current file and the current project
+            //
+            wrapper.setCurrentFileId(fileId);
+            wrapper.setCurrentTextLength(documentChanges.get(documentChanges.size() - 1).textLength);
+
+            for (DocumentChanges changes : documentChanges) {
+                KeystrokeCount keystrokeCount = wrapper.acquireKeystrokeCount(changes.minute);
+                try {
+                    KeystrokeFileInfo fileInfo = keystrokeCount.getSourceByFileId(fileId);
+                    fileInfo.update(Metric.ADD, changes.adds);
+                    fileInfo.update(Metric.PASTE, changes.pastes);
+                    fileInfo.update(Metric.DELETE, changes.deletes);
+                    fileInfo.update(Metric.LINES_ADDED, changes.linesAdded);
+                    fileInfo.update(Metric.LINES_REMOVED, changes.linesRemoved);
+                    fileInfo.update(Metric.LINES, changes.lineCount);
+                    keystrokeCount.addKeystrokes(changes.keystrokes);
+                } finally {
+                    wrapper.releaseKeystrokeCount(keystrokeCount);
+                }
+            }
+        }
     }
 
-    private void initializeKeystrokeCount(String projectName, String projectFilepath) {
-        KeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount();
-        if ( keystrokeCount == null || keystrokeCount.getProject() == null ) {
-            createKeystrokeCountWrapper(projectName, projectFilepath);
-        } else if (!keystrokeCount.getProject().getName().equals(projectName)) {
-            final KeystrokeManager.KeystrokeCountWrapper current = keystrokeMgr.getKeystrokeWrapper();
+    public KeystrokeEventQueue getEventQueue() {
+        return eventQueue;
+    }
 
-            // send the current wrapper and create a new one
-            final Runnable processKpmRunner = () -> this.processKeystrokes(current);
-            processKpmRunner.run();
+    /**
+     * The changes for one document and minute within a drained batch
+     */
+    private static class DocumentChanges {
+        final long minute;
+        int adds = 0;
+        int pastes = 0;
+        int deletes = 0;
+        int linesAdded = 0;
+        int linesRemoved = 0;
+        int keystrokes = 0;
+        int textLength = 0;
+        int lineCount = 0;
+
+        DocumentChanges(long minute) {
+            this.minute = minute;
+        }
 
-            createKeystrokeCountWrapper(projectName, projectFilepath);
+        void add(int kind, int linesAdded, int linesRemoved, int textLength, int lineCount) {
+            if ((kind & KeystrokeEventQueue.KIND_DELETE) != 0) {
+                deletes++;
+            } else if ((kind & KeystrokeEventQueue.KIND_PASTE) != 0) {
+                pastes++;
+            } else {
+                adds++;
+            }
+            this.linesAdded += linesAdded;
+            this.linesRemoved += linesRemoved;
+            keystrokes++;
+            // the latest record wins for the non-additive values
+            this.textLength = textLength;
+            this.lineCount = lineCount;
         }
     }
 
-    private void createKeystrokeCountWrapper(String projectName, String projectFilepath) {
-        //
-        // Create one since it hasn't been created yet
-        // and set the start time (in seconds)
-        //
-        KeystrokeCount keystrokeCount = new KeystrokeCount();
-
-        KeystrokeProject keystrokeProject = new KeystrokeProject( projectName, projectFilepath );
-        keystrokeCount.setProject( keystrokeProject );
+    /**
+     * Returns the project's accumulator, creating it if needed.
+     * Switching between projects never triggers a flush.
+     */
+    public KeystrokeManager.KeystrokeCountWrapper initializeKeystrokeObjectGraph(
+            String fileName, String projectName, String projectFilepath) {
+        // initialize it in case it's not initialized yet
+        KeystrokeManager.KeystrokeCountWrapper wrapper = keystrokeMgr.getKeystrokeWrapper(projectName, projectFilepath);
 
         //
-        // Update the manager with the newly created KeystrokeCount object
-        //
-        keystrokeMgr.setKeystrokeCount(projectName, keystrokeCount);
+        // Make sure we have the project name and directory info
+        updateKeystrokeProject(projectName, fileName, wrapper.getProject());
+
+        return wrapper;
     }
 
-    private void updateKeystrokeProject(String projectName, String fileName, KeystrokeCount keystrokeCount) {
-        if (keystrokeCount == null) {
+    private void updateKeystrokeProject(String projectName, String fileName, KeystrokeProject project) {
+        if (project == null) {
             return;
         }
-        KeystrokeProject project = keystrokeCount.getProject();
         String projectDirectory = getProjectDirectory(projectName, fileName);
 
-        if (project == null) {
-            project = new KeystrokeProject( projectName, projectDirectory );
-            keystrokeCount.setProject( project );
-        } else if (project.getName() == null || project.getName() == "") {
+        if (project.getName() == null || project.getName() == "") {
             project.setDirectory(projectDirectory);
             project.setName(projectName);
         }
@@ -248,40 +289,126 @@ public class SoftwareCoEventManager {
         return projectDirectory;
     }
 
-    public void processKeystrokesData() {
-        final KeystrokeManager.KeystrokeCountWrapper current = keystrokeMgr.getKeystrokeWrapper();
-        // send the current wrapper and create a new one
-        processKeystrokes(current);
+    /**
+     * Sends the offline backlog and every project's accumulator without
+     * waiting on either, the future completes once they're all sent or stored
+     */
+    public CompletableFuture<Void> processKeystrokesData() {
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        if (appIsReady) {
+            // send any offline data if we have any, a large backlog can take a while
+            sends.add(startOfflineUpload());
+
+            // send every project's accumulator
+            for (KeystrokeManager.KeystrokeCountWrapper wrapper : keystrokeMgr.getKeystrokeWrappers()) {
+                sends.add(processKeystrokes(wrapper));
+            }
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture[0]));
     }
 
-    public void processKeystrokes(KeystrokeManager.KeystrokeCountWrapper wrapper) {
-        if (appIsReady) {
+    /**
+     * Starts sending the offline backlog unless the last upload is still going
+     */
+    private synchronized CompletableFuture<Void> startOfflineUpload() {
+        if (offlineUpload.isDone()) {
+            offlineUpload = SoftwareCoUtils.EXECUTOR_SERVICE.runAsync(sessionMgr::sendOfflineData);
+        }
+        return offlineUpload;
+    }
 
-            // send any offline data if we have any
-            sessionMgr.sendOfflineData();
-
-            if (wrapper != null && wrapper.getKeystrokeCount() != null && wrapper.getKeystrokeCount().hasData()) {
-                // ZonedDateTime will get us the true seconds away from GMT
-                // it'll be negative for zones before GMT and postive for zones after
-                Integer offset  = ZonedDateTime.now().getOffset().getTotalSeconds();
-                long startInSeconds = (int) (new Date().getTime() / 1000);
-                wrapper.getKeystrokeCount().setStart(startInSeconds);
-                // add to the start in seconds since it's a negative for less than gmt and the
-                // opposite for grtr than gmt
-                wrapper.getKeystrokeCount().setLocal_start(startInSeconds + offset);
-                wrapper.getKeystrokeCount().setTimezone(TimeZone.getDefault().getID());
-                final String payload = SoftwareCo.gson.toJson(wrapper.getKeystrokeCount());
-
-                SoftwareResponse resp = SoftwareCoUtils.makeApiCall("/data", HttpPost.METHOD_NAME, payload);
-                if (!resp.isOk()) {
-                    sessionMgr.storePayload(payload);
-                }
+    public CompletableFuture<Void> processKeystrokes(KeystrokeManager.KeystrokeCountWrapper wrapper) {
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        if (appIsReady && wrapper != null) {
+            for (KeystrokeCount keystrokeCount : retireKeystrokeCounts(wrapper)) {
+                sends.add(sendKeystrokeCount(keystrokeCount, new AtomicBoolean()));
+            }
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture[0]));
+    }
 
-                keystrokeMgr.resetData();
-            } else if (wrapper != null && wrapper.getKeystrokeCount() != null) {
-                keystrokeMgr.resetData();
+    /**
+     * Sends every project's accumulator one last time and waits for it at
+     * most timeoutMillis. The offline backlog isn't sent, it waits for the
+     * next run. A payload still unanswered when the time is up is stored
+     * with its key, and whatever its request does afterwards is ignored. If
+     * the request gets through after all the api drops the stored copy as a
+     * duplicate.
+     */
+    public void flushKeystrokes(long timeoutMillis) {
+        if (!appIsReady) {
+            return;
+        }
+        Map<KeystrokeCount, AtomicBoolean> stored = new LinkedHashMap<>();
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (KeystrokeManager.KeystrokeCountWrapper wrapper : keystrokeMgr.getKeystrokeWrappers()) {
+            for (KeystrokeCount keystrokeCount : retireKeystrokeCounts(wrapper)) {
+                AtomicBoolean claimed = new AtomicBoolean();
+                stored.put(keystrokeCount, claimed);
+                sends.add(sendKeystrokeCount(keystrokeCount, claimed));
+            }
+        }
+        try {
+            CompletableFuture.allOf(sends.toArray(new CompletableFuture[0]))
+                    .get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.info("Code Time: Storing the keystroke payloads that weren't sent in time");
+            for (Map.Entry<KeystrokeCount, AtomicBoolean> send : stored.entrySet()) {
+                // a send that already finished stored it itself, or didn't need to
+                if (send.getValue().compareAndSet(false, true)) {
+                    sessionMgr.storePayload(SoftwareCo.gson.toJson(send.getKey()));
+                }
             }
+        }
+    }
 
+    /**
+     * Retires the wrapper's minute buckets, edits made while we send go into
+     * fresh ones, and fills in what the payloads need to be sent
+     */
+    private List<KeystrokeCount> retireKeystrokeCounts(KeystrokeManager.KeystrokeCountWrapper wrapper) {
+        List<KeystrokeCount> keystrokeCounts = wrapper.retireKeystrokeCounts();
+        String timezone = TimeZone.getDefault().getID();
+        for (KeystrokeCount keystrokeCount : keystrokeCounts) {
+            // the start is the top of the bucket's minute. Take the offset
+            // from GMT at that instant, it'll be negative for zones before
+            // GMT and positive for zones after
+            long startInSeconds = keystrokeCount.getStart();
+            int offset = ZoneId.systemDefault().getRules()
+                    .getOffset(Instant.ofEpochSecond(startInSeconds)).getTotalSeconds();
+            keystrokeCount.setLocal_start(startInSeconds + offset);
+            keystrokeCount.setTimezone(timezone);
+            // the payload keeps its key when it's stored and resent
+            keystrokeCount.setIdempotencyKey(SoftwareCoIdempotencyKeys.next(keystrokeCount.getBucketMinute()));
         }
+        return keystrokeCounts;
+    }
+
+    /**
+     * Streams the payload straight to the connection, it's stored if it can't
+     * be sent. Whoever sets claimed first decides what happens to the payload,
+     * so it's stored at most once.
+     */
+    private CompletableFuture<Void> sendKeystrokeCount(KeystrokeCount keystrokeCount, AtomicBoolean claimed) {
+        return SoftwareCoUtils.makeApiCallAsync(
+                "/data", SoftwareJsonEntity.of(keystrokeCount, SoftwareCoUtils.gzipPayloads))
+                .handle((resp, e) -> {
+                    if (!claimed.compareAndSet(false, true)) {
+                        // flushKeystrokes gave up on it and stored it already
+                        return null;
+                    }
+                    if (e != null || !resp.isOk()) {
+                        if (e == null && !resp.isSent()) {
+                            // the api can't have it, the compactor may merge it with others
+                            keystrokeCount.setIdempotencyKey(
+                                    SoftwareCoIdempotencyKeys.nextUnsent(keystrokeCount.getBucketMinute()));
+                        }
+                        sessionMgr.storePayload(SoftwareCo.gson.toJson(keystrokeCount));
+                    }
+                    return null;
+                });
     }
 }
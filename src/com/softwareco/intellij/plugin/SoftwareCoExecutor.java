@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import javax.swing.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded thread pool for the plugin's background work. It runs at most
+ * maxThreads named daemon threads, idle ones exit after a minute, and up to
+ * queueCapacity tasks wait behind them. When the queue is full the
+ * submitter waits up to submitWaitMillis for room, or not at all on the
+ * event dispatch thread, then the task is turned away with a
+ * RejectedExecutionException and counted. A task never runs on the thread
+ * that submitted it, that's often the scheduler's or the UI's. supplyAsync,
+ * runAsync and tryExecute turn a rejection into a failed future or a
+ * dropped task for callers that can't handle the exception. Tasks submitted
+ * after shutdown are dropped.
+ *
+ * Tasks here must not wait on other tasks queued on the same pool, a full
+ * pool of waiting tasks never gets to the ones they wait on.
+ *
+ * The pool counts the tasks it ran and the time they spent queued and
+ * running, getStats has them along with the active threads and queue depth.
+ * A task that throws is logged, for supplyAsync and runAsync the exception
+ * goes to the returned future instead.
+ */
+public class SoftwareCoExecutor extends ThreadPoolExecutor {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoExecutor");
+
+    public static long submitWaitMillis = 100;
+
+    private final String name;
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicLong timedTasks = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final ThreadLocal<Long> runStart = new ThreadLocal<>();
+
+    public SoftwareCoExecutor(String name, int maxThreads, int queueCapacity) {
+        super(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreadFactory(name));
+        this.name = name;
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler((task, executor) -> {
+            if (executor.isShutdown()) {
+                return;
+            }
+            try {
+                // a short wait for room, the UI thread doesn't wait at all
+                long wait = SwingUtilities.isEventDispatchThread() ? 0 : submitWaitMillis;
+                if (executor.getQueue().offer(task, wait, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rejectedTasks.incrementAndGet();
+            log.warn("Code Time: " + name + " is busy, a background task was turned away. " + getStats());
+            throw new RejectedExecutionException(name + " is busy, " + getQueueDepth() + " tasks queued");
+        });
+    }
+
+    /**
+     * Threads named after the pool that don't keep the IDE from exiting
+     */
+    public static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command));
+    }
+
+    /**
+     * Runs the task on the pool unless it's turned away, returns false if it was
+     */
+    public boolean tryExecute(Runnable command) {
+        try {
+            execute(command);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * CompletableFuture.supplyAsync on the pool, a task that's turned away
+     * fails the future rather than throwing at the caller
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, this);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    public CompletableFuture<Void> runAsync(Runnable runnable) {
+        return supplyAsync(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        long now = System.nanoTime();
+        if (task instanceof QueuedTask) {
+            long wait = now - ((QueuedTask) task).queuedAt;
+            totalWaitNanos.addAndGet(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+        }
+        runStart.set(now);
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable t) {
+        Long start = runStart.get();
+        if (start != null) {
+            totalRunNanos.addAndGet(System.nanoTime() - start);
+            timedTasks.incrementAndGet();
+            runStart.remove();
+        }
+        if (t == null && task instanceof QueuedTask) {
+            t = getFailure(((QueuedTask) task).task);
+        }
+        if (t != null) {
+            log.warn("Code Time: Background task failed, error: " + t.getMessage());
+        }
+    }
+
+    /**
+     * What a submitted task threw, a FutureTask keeps it rather than
+     * letting it reach afterExecute. A CompletableFuture task completes
+     * normally, its exception is in the future the caller holds.
+     */
+    private static Throwable getFailure(Runnable task) {
+        if (!(task instanceof Future) || !((Future<?>) task).isDone()) {
+            return null;
+        }
+        try {
+            ((Future<?>) task).get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            // cancelled on purpose
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Tasks turned away because the queue stayed full
+     */
+    public long getRejectedCount() {
+        return rejectedTasks.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long tasks = timedTasks.get();
+        return (tasks > 0) ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / tasks) : 0;
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public long getAverageRunMillis() {
+        long tasks = timedTasks.get();
+        return (tasks > 0) ? TimeUnit.NANOSECONDS.toMillis(totalRunNanos.get() / tasks) : 0;
+    }
+
+    public String getStats() {
+        return name + ": " + getActiveCount() + " of " + getPoolSize() + " threads active, " +
+                getQueueDepth() + " queued, " + timedTasks.get() + " ran, " + getRejectedCount() + " turned away, " +
+                "wait avg " + getAverageWaitMillis() + "ms max " + getMaxWaitMillis() + "ms, " +
+                "run avg " + getAverageRunMillis() + "ms";
+    }
+
+    /**
+     * Remembers when the task was queued
+     */
+    private static class QueuedTask implements Runnable {
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
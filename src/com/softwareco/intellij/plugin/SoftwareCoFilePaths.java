@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session wide dictionary of the files we've seen events for. Each file gets
+ * a small int id the first time it's seen, the event path indexes the source
+ * map by that id and the path String is only built when a payload is written.
+ * Paths under a project directory are kept as the shared directory plus the
+ * relative remainder.
+ *
+ * Editor files are only weakly held, and SoftwareCoFileSystemListener drops
+ * a file's entries when it's renamed, moved or deleted so its next event
+ * registers the new path. Ids already handed out keep resolving to the old
+ * path, the counts waiting to be sent were made under that path.
+ */
+public class SoftwareCoFilePaths {
+
+    private static final SoftwareCoFilePaths instance = new SoftwareCoFilePaths();
+
+    // weak keys so closed and deleted files don't stay reachable from here
+    private final Map<VirtualFile, Integer> fileIds = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Map<String, Integer> pathIds = new ConcurrentHashMap<>();
+    private final Map<String, String> directories = new ConcurrentHashMap<>();
+
+    // indexed by file id, only grown while holding the lock
+    private volatile String[] prefixes = new String[64];
+    private volatile String[] relativePaths = new String[64];
+    private int size = 0;
+
+    public static SoftwareCoFilePaths getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the id of an editor file, registering it on first sight.
+     * The VirtualFile is the key so the path isn't rebuilt on every event.
+     */
+    public int getFileId(VirtualFile file, String projectDirectory) {
+        Integer id = fileIds.get(file);
+        if (id != null) {
+            return id;
+        }
+        return fileIds.computeIfAbsent(file, f -> getFileId(f.getPath(), projectDirectory));
+    }
+
+    /**
+     * Drops the file's entries, or those of every file under it for a
+     * directory. Call it before the file's path changes or it goes away.
+     */
+    public void forget(VirtualFile file) {
+        String path = file.getPath();
+        if (file.isDirectory()) {
+            String directory = path.endsWith("/") ? path : path + "/";
+            synchronized (fileIds) {
+                fileIds.keySet().removeIf(f -> f.getPath().startsWith(directory));
+            }
+            pathIds.keySet().removeIf(p -> p.startsWith(directory));
+        } else {
+            fileIds.remove(file);
+            pathIds.remove(path);
+        }
+    }
+
+    /**
+     * Returns the id of a path, registering it on first sight
+     */
+    public int getFileId(String path, String projectDirectory) {
+        Integer id = pathIds.get(path);
+        if (id != null) {
+            return id;
+        }
+        return pathIds.computeIfAbsent(path, p -> register(p, projectDirectory));
+    }
+
+    public int getFileId(String path) {
+        return getFileId(path, null);
+    }
+
+    private synchronized int register(String path, String projectDirectory) {
+        String prefix = null;
+        String relativePath = path;
+        if (projectDirectory != null && projectDirectory.length() > 0
+                && path.length() > projectDirectory.length()
+                && path.startsWith(projectDirectory)) {
+            // share one copy of the directory between all of the project's files
+            prefix = directories.computeIfAbsent(projectDirectory, d -> d);
+            relativePath = path.substring(projectDirectory.length());
+        }
+
+        int id = size;
+        if (id == relativePaths.length) {
+            String[] grownPrefixes = Arrays.copyOf(prefixes, id * 2);
+            String[] grownPaths = Arrays.copyOf(relativePaths, id * 2);
+            prefixes = grownPrefixes;
+            relativePaths = grownPaths;
+        }
+        prefixes[id] = prefix;
+        relativePaths[id] = relativePath;
+        size = id + 1;
+        return id;
+    }
+
+    /**
+     * Builds the full path of a file id, only needed when writing the payload
+     */
+    public String getPath(int fileId) {
+        // ids are handed out through the concurrent maps, which publishes
+        // the entry written by register to whoever holds the id
+        String relativePath = relativePaths[fileId];
+        String prefix = prefixes[fileId];
+        return (prefix != null) ? prefix + relativePath : relativePath;
+    }
+
+    public int size() {
+        return pathIds.size();
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+
+import java.util.List;
+
+/**
+ * Keeps the file id dictionary in step with renames, moves and deletes. The
+ * entries are dropped before the change, while the file still has its old
+ * path, and the next event for it registers the new one.
+ */
+public class SoftwareCoFileSystemListener implements BulkFileListener {
+
+    private final SoftwareCoFilePaths filePaths = SoftwareCoFilePaths.getInstance();
+
+    @Override
+    public void before(List<? extends VFileEvent> events) {
+        for (VFileEvent event : events) {
+            VirtualFile file = event.getFile();
+            if (file == null) {
+                continue;
+            }
+            if (event instanceof VFileMoveEvent || event instanceof VFileDeleteEvent
+                    || (event instanceof VFilePropertyChangeEvent
+                    && VirtualFile.PROP_NAME.equals(((VFilePropertyChangeEvent) event).getPropertyName()))) {
+                filePaths.forget(file);
+            }
+        }
+    }
+
+    @Override
+    public void after(List<? extends VFileEvent> events) {
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one HttpClient every api call goes through. Connections are pooled and
+ * kept alive between calls so most calls skip the TCP and TLS handshakes, and
+ * they all share one SSLContext so a new connection can resume a cached TLS
+ * session. Connections idle for longer than keepAliveMillis are closed in the
+ * background, before a proxy drops them under us, and a pooled connection
+ * that sat unused for a moment is checked before it's reused.
+ *
+ * The client has no timeouts of its own, each call picks a TimeoutProfile.
+ */
+public class SoftwareCoHttpClient {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoHttpClient");
+
+    public enum TimeoutProfile {
+        // status checks and small posts, give up quickly if the server is having issues
+        QUICK(5000, 5000, 5000),
+        // everything else, summaries and the dashboard can take a while to build
+        DEFAULT(10000, 10000, 30000),
+        // streamed uploads of the offline backlog
+        UPLOAD(10000, 10000, 60000);
+
+        private final RequestConfig requestConfig;
+
+        TimeoutProfile(int connectTimeout, int connectionRequestTimeout, int socketTimeout) {
+            requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeout)
+                    .setConnectionRequestTimeout(connectionRequestTimeout)
+                    .setSocketTimeout(socketTimeout)
+                    .build();
+        }
+
+        public RequestConfig getRequestConfig() {
+            return requestConfig;
+        }
+    }
+
+    public static int maxConnections = 20;
+    public static int maxConnectionsPerRoute = 10;
+    public static long keepAliveMillis = TimeUnit.MINUTES.toMillis(2);
+    public static int validateAfterInactivityMillis = 2000;
+
+    private static PoolingHttpClientConnectionManager connectionManager = null;
+    private static CloseableHttpClient client = null;
+
+    public static synchronized CloseableHttpClient getClient() {
+        if (client == null) {
+            // one SSLContext, its session cache is what lets new connections resume TLS sessions
+            Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault(),
+                            SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
+                    .build();
+            connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setValidateAfterInactivity(validateAfterInactivityMillis);
+
+            // keep a connection as long as the server allows, up to keepAliveMillis
+            ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+                long serverMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return (serverMillis > 0) ? Math.min(serverMillis, keepAliveMillis) : keepAliveMillis;
+            };
+
+            client = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(keepAlive)
+                    // a payload that can't be built fails the same way on every try
+                    .setRetryHandler((exception, executionCount, context) ->
+                            !(exception instanceof SoftwareJsonEntity.ContentException)
+                                    && DefaultHttpRequestRetryHandler.INSTANCE.retryRequest(exception, executionCount, context))
+                    // connections aren't tied to a user, any call can reuse any of them
+                    .disableConnectionState()
+                    .evictExpiredConnections()
+                    .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Leased and idle connections across the pool
+     */
+    public static synchronized PoolStats getPoolStats() {
+        return (connectionManager != null) ? connectionManager.getTotalStats() : new PoolStats(0, 0, 0, 0);
+    }
+
+    /**
+     * Closes the pooled connections and stops the evictor. Don't hold on to
+     * the client, the next getClient builds a new one.
+     */
+    public static synchronized void shutdown() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("Code Time: Unable to close the http client, error: " + e.getMessage());
+            }
+            client = null;
+            connectionManager = null;
+        }
+    }
+}
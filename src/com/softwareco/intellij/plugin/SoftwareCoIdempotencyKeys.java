@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Idempotency keys for the data payloads. A key is made of this IDE run's
+ * instance id, the payload's time bucket and a sequence number, so every
+ * flushed payload has its own key and keeps it while it's stored, compacted
+ * and sent again. The api drops a payload with a key it already accepted,
+ * which is what makes retrying and hedging the uploads safe.
+ *
+ * A stored keystroke payload whose /data post never went out gets an
+ * unsent key instead, see nextUnsent. Only those are merged by the
+ * compactor, any other may already be counted under its key.
+ *
+ * Payloads that are built again from their source instead of being stored,
+ * like the music track events and the commit batches, get a key derived
+ * from what identifies them, see of. Building one again for a resend gives
+ * it the same key.
+ */
+public class SoftwareCoIdempotencyKeys {
+
+    public static final String FIELD = "idempotency_key";
+    private static final String UNSENT_PREFIX = "unsent-";
+
+    // payloads stored by earlier runs already carry their keys
+    private static final String INSTANCE_ID = SoftwareCoSessionManager.generateToken();
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param bucket the payload's bucket, the minute since the epoch for keystroke payloads
+     */
+    public static String next(long bucket) {
+        return INSTANCE_ID + "-" + bucket + "-" + sequence.incrementAndGet();
+    }
+
+    /**
+     * A key for a payload the api can't have seen, its /data post never went out
+     */
+    public static String nextUnsent(long bucket) {
+        return UNSENT_PREFIX + next(bucket);
+    }
+
+    /**
+     * True if the payload's key says the api can't have seen it
+     */
+    public static boolean isUnsent(JsonObject payload) {
+        JsonElement key = payload.get(FIELD);
+        return key != null && key.isJsonPrimitive() && key.getAsString().startsWith(UNSENT_PREFIX);
+    }
+
+    /**
+     * A key made from the parts that identify the payload, the same parts
+     * always give the same key
+     */
+    public static String of(String kind, String... parts) {
+        StringBuilder identity = new StringBuilder(kind);
+        for (String part : parts) {
+            identity.append('\n').append(part);
+        }
+        UUID uuid = UUID.nameUUIDFromBytes(identity.toString().getBytes(StandardCharsets.UTF_8));
+        return kind + "-" + uuid.toString().replace("-", "");
+    }
+
+    /**
+     * Gives the payload a key if it doesn't have one, payloads stored before
+     * keys were added get theirs here. The bucket is the minute of its start.
+     * They're given unsent keys, without a key the api couldn't tell them
+     * apart anyway.
+     */
+    public static void ensure(JsonObject payload) {
+        JsonElement key = payload.get(FIELD);
+        if (key != null && key.isJsonPrimitive()) {
+            return;
+        }
+        JsonElement start = payload.get("start");
+        long bucket = (start != null && start.isJsonPrimitive()) ? start.getAsLong() / 60 : 0;
+        payload.addProperty(FIELD, nextUnsent(bucket));
+    }
+}
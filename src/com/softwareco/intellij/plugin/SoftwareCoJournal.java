@@ -0,0 +1,1286 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal for the payloads that couldn't be sent. It replaces the
+ * data.json file and lives in ~/.software/journal as a sequence of segment
+ * files. Each record is written as its length, a CRC32 of the payload and the
+ * payload bytes, so a half written record at the end of a segment is detected
+ * and cut off when the journal is reopened after a crash.
+ *
+ * Segments are written either as plain json or deflate compressed, see
+ * SoftwareCoJournalCodec. The encoding is recorded in each segment's header,
+ * so segments of both kinds can be read back whatever the current setting.
+ *
+ * Every IDE running the plugin appends to the same journal. Changes are made
+ * while holding the journal's lock file, which also holds the state the
+ * processes share: the segment being appended to, its size and the backlog
+ * totals. A process that finds the state changed by another one reloads the
+ * segment list and cursor before going on. Uploads and compactions are left
+ * to one process, see SoftwareCoSessionManager.isPrimaryInstance.
+ */
+public class SoftwareCoJournal {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoJournal");
+
+    private static SoftwareCoJournal instance = null;
+
+    public enum FsyncPolicy {
+        // leave it to the OS
+        NEVER,
+        // force the segment at most once per sync interval, batching the appends in between
+        GROUP,
+        // force after every append
+        ALWAYS
+    }
+
+    public enum Encoding {
+        PLAIN,
+        DEFLATE
+    }
+
+    private static final int MAGIC = 0x43544a31; // "CTJ1"
+    private static final int MAGIC_DEFLATE = 0x43545a31; // "CTZ1"
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String DAMAGED_SUFFIX = ".damaged";
+    private static final String CURSOR_FILE = "cursor";
+    private static final String SENT_FILE = "sent";
+    private static final String COMPACTION_FILE = "compaction";
+    private static final String LOCK_FILE = "journal.lock";
+    private static final int STATE_SIZE = 44;
+    private static final int CURSOR_SIZE = 20;
+    private static final int COMPACTION_SIZE = 36;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    public static long maxSegmentBytes = 4 * 1024 * 1024;
+    public static FsyncPolicy fsyncPolicy = FsyncPolicy.GROUP;
+    public static long syncIntervalMillis = TimeUnit.SECONDS.toMillis(1);
+    public static Encoding encoding = Encoding.PLAIN;
+
+    /**
+     * Receives each record's payload while a segment is read
+     */
+    public interface RecordHandler {
+        void accept(String payload) throws IOException;
+    }
+
+    /**
+     * A segment couldn't be read from disk, or its records can't be followed.
+     * Reading it again fails the same way, see quarantineSegment.
+     */
+    public static class UnreadableSegmentException extends IOException {
+        private final long segmentId;
+
+        public UnreadableSegmentException(long segmentId, String message, Throwable cause) {
+            super(message, cause);
+            this.segmentId = segmentId;
+        }
+
+        public long getSegmentId() {
+            return segmentId;
+        }
+    }
+
+    /**
+     * Carries a handler's own exception past the segment's read errors
+     */
+    private static class HandlerException extends IOException {
+        HandlerException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * A position in the journal. Every record before it has been delivered.
+     */
+    public static class Cursor {
+        private final long segmentId;
+        private final long offset;
+
+        public Cursor(long segmentId, long offset) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+        }
+
+        public long getSegmentId() {
+            return segmentId;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return segmentId + ":" + offset;
+        }
+    }
+
+    private final Path directory;
+    private final List<Long> segmentIds = new ArrayList<>();
+    private volatile Cursor committed = new Cursor(0, SEGMENT_HEADER_SIZE);
+    // records before it may have reached the api without being acknowledged
+    private volatile Cursor sent = new Cursor(0, SEGMENT_HEADER_SIZE);
+    private SegmentWriter activeWriter = null;
+    private final SoftwareCoProcessLock processLock;
+    // the next segment id, appends go to the one before it while tailSize isn't 0
+    private long activeSegmentId;
+    private long tailSize = 0;
+    private boolean dirty = false;
+    private long lastSync = 0;
+    // the shared state this process last read or wrote, -1 before the first read
+    private long generation = -1;
+    private boolean stateChanged = false;
+    // the undelivered records, the ones from the cursor on
+    private long backlogBytes = 0;
+    private long recordCount = 0;
+
+    public static SoftwareCoJournal getInstance() {
+        if (instance == null) {
+            instance = new SoftwareCoJournal(
+                    Paths.get(SoftwareCoSessionManager.getSoftwareDir(true), "journal"));
+        }
+        return instance;
+    }
+
+    public SoftwareCoJournal(Path directory) {
+        this.directory = directory;
+        this.processLock = new SoftwareCoProcessLock(directory.resolve(LOCK_FILE));
+    }
+
+    /**
+     * Takes the journal lock and catches up with the changes other processes
+     * made since this one last held it. Every lockJournal needs an unlockJournal.
+     */
+    private void lockJournal() throws IOException {
+        processLock.lock();
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    private void unlockJournal() {
+        try {
+            if (stateChanged) {
+                saveState();
+            }
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to save the journal state, error: " + e.getMessage());
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private void refresh() throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+        CRC32 crc = new CRC32();
+        boolean valid = processLock.readState(state);
+        if (valid) {
+            crc.update(state.array(), 0, STATE_SIZE - 4);
+            valid = state.getInt(STATE_SIZE - 4) == (int) crc.getValue();
+        }
+        if (!valid) {
+            // first use of the journal, or its state was lost
+            open();
+            return;
+        }
+        if (state.getLong(0) != generation) {
+            // another process changed the journal, the tail is reopened on the next append
+            closeActiveSegment();
+            generation = state.getLong(0);
+            activeSegmentId = state.getLong(8);
+            tailSize = state.getLong(16);
+            backlogBytes = state.getLong(24);
+            recordCount = state.getLong(32);
+            committed = readCursor(CURSOR_FILE);
+            sent = readCursor(SENT_FILE);
+            listSegments();
+        }
+        // commit holds the lock until the compaction is applied, a compaction
+        // file seen here was left by a process that died part way through
+        if (Files.exists(directory.resolve(COMPACTION_FILE))) {
+            listSegments();
+            if (finishCommittedCompaction()) {
+                long[] backlog = measure(committed, new Cursor(Long.MAX_VALUE, 0));
+                recordCount = backlog[0];
+                backlogBytes = backlog[1];
+                stateChanged = true;
+            }
+        }
+    }
+
+    private void saveState() throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+        state.putLong(generation + 1).putLong(activeSegmentId).putLong(tailSize)
+                .putLong(backlogBytes).putLong(recordCount);
+        CRC32 crc = new CRC32();
+        crc.update(state.array(), 0, STATE_SIZE - 4);
+        state.putInt((int) crc.getValue()).flip();
+        processLock.writeState(state);
+        generation++;
+        stateChanged = false;
+    }
+
+    private void listSegments() throws IOException {
+        segmentIds.clear();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                Long id = parseSegmentId(path);
+                if (id != null) {
+                    segmentIds.add(id);
+                }
+            }
+        }
+        Collections.sort(segmentIds);
+    }
+
+    /**
+     * Rebuilds the shared state from the files when there isn't any yet.
+     * Finds the existing segments and repairs the tail of the newest one.
+     */
+    private void open() throws IOException {
+        closeActiveSegment();
+        listSegments();
+        committed = readCursor(CURSOR_FILE);
+        sent = readCursor(SENT_FILE);
+        recoverCompaction();
+        // never reuse a segment id the cursor has already moved past
+        activeSegmentId = Math.max(committed.getSegmentId(),
+                segmentIds.isEmpty() ? 0 : segmentIds.get(segmentIds.size() - 1) + 1);
+        if (!segmentIds.isEmpty()) {
+            recoverTail(segmentIds.get(segmentIds.size() - 1));
+        }
+        tailSize = 0;
+        deleteSegmentsBefore(committed.getSegmentId());
+        long[] backlog = measure(committed, new Cursor(Long.MAX_VALUE, 0));
+        recordCount = backlog[0];
+        backlogBytes = backlog[1];
+        saveState();
+    }
+
+    /**
+     * Truncates the segment after its last complete record
+     */
+    private void recoverTail(long segmentId) throws IOException {
+        Path path = segmentPath(segmentId);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long validEnd = scan(channel, SEGMENT_HEADER_SIZE, channel.size(), null);
+            if (validEnd < channel.size()) {
+                log.warn("Code Time: Truncating " + (channel.size() - validEnd) +
+                        " bytes of an incomplete record from " + path.getFileName());
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+        }
+        if (Files.size(path) <= SEGMENT_HEADER_SIZE) {
+            Files.deleteIfExists(path);
+            segmentIds.remove(Long.valueOf(segmentId));
+        }
+    }
+
+    public synchronized void append(String payload) throws IOException {
+        lockJournal();
+        try {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            if (activeWriter == null && tailSize > 0 && segmentIds.contains(activeSegmentId - 1)) {
+                activeWriter = openTail(activeSegmentId - 1);
+            }
+            if (activeWriter == null || activeWriter.size + RECORD_HEADER_SIZE + bytes.length > maxSegmentBytes) {
+                rollSegment();
+            }
+
+            long recordSize = activeWriter.write(bytes);
+            tailSize = activeWriter.size;
+            backlogBytes += recordSize;
+            recordCount++;
+            dirty = true;
+            stateChanged = true;
+
+            if (fsyncPolicy == FsyncPolicy.ALWAYS
+                    || (fsyncPolicy == FsyncPolicy.GROUP && System.currentTimeMillis() - lastSync >= syncIntervalMillis)) {
+                sync();
+            }
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    /**
+     * Opens the segment another process, or an earlier run, was appending
+     * to. Records written after the shared size was saved are kept when
+     * they're complete, anything after them is cut off.
+     */
+    private SegmentWriter openTail(long segmentId) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            long from = (size >= tailSize) ? tailSize : SEGMENT_HEADER_SIZE;
+            long validEnd = scan(channel, from, size, null);
+            if (validEnd < SEGMENT_HEADER_SIZE) {
+                channel.close();
+                return null;
+            }
+            if (validEnd < size) {
+                log.warn("Code Time: Truncating " + (size - validEnd) + " bytes of an incomplete record from segment " + segmentId);
+                channel.truncate(validEnd);
+            }
+            if (from == tailSize && validEnd > tailSize) {
+                long[] totals = new long[2];
+                skipRecords(channel, tailSize, validEnd, Long.MAX_VALUE, Long.MAX_VALUE, totals);
+                recordCount += totals[0];
+                backlogBytes += totals[1];
+            }
+            ByteBuffer magic = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            channel.read(magic, 0);
+            Encoding segmentEncoding = (magic.getInt(0) == MAGIC_DEFLATE) ? Encoding.DEFLATE : Encoding.PLAIN;
+            byte[] dictionary = null;
+            if (segmentEncoding == Encoding.DEFLATE && validEnd > SEGMENT_HEADER_SIZE) {
+                try (SoftwareCoJournalCodec codec = new SoftwareCoJournalCodec()) {
+                    dictionary = readDictionary(channel, codec);
+                }
+            }
+            channel.position(validEnd);
+            return new SegmentWriter(channel, segmentEncoding, dictionary, validEnd);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Forces the appends since the last sync to disk
+     */
+    public synchronized void sync() throws IOException {
+        if (activeWriter != null && dirty) {
+            activeWriter.channel.force(false);
+            dirty = false;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends encoded records to a segment
+     */
+    private static class SegmentWriter {
+        final FileChannel channel;
+        final Encoding encoding;
+        final SoftwareCoJournalCodec codec;
+        // the dictionary for compressed records, set once the first record is written
+        byte[] dictionary = null;
+        long size = SEGMENT_HEADER_SIZE;
+
+        SegmentWriter(Path path, Encoding encoding) throws IOException {
+            this.encoding = encoding;
+            this.codec = (encoding == Encoding.DEFLATE) ? new SoftwareCoJournalCodec() : null;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt((encoding == Encoding.DEFLATE) ? MAGIC_DEFLATE : MAGIC).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+
+        /**
+         * Continues a segment that already has records, the channel is
+         * positioned at its end
+         */
+        SegmentWriter(FileChannel channel, Encoding encoding, byte[] dictionary, long size) {
+            this.channel = channel;
+            this.encoding = encoding;
+            this.codec = (encoding == Encoding.DEFLATE) ? new SoftwareCoJournalCodec() : null;
+            this.dictionary = dictionary;
+            this.size = size;
+        }
+
+        /**
+         * Writes the record with a single gathering write and returns its size
+         */
+        long write(byte[] raw) throws IOException {
+            byte[] bytes = raw;
+            if (codec != null) {
+                bytes = codec.deflate(raw, dictionary);
+                if (dictionary == null) {
+                    dictionary = SoftwareCoJournalCodec.segmentDictionary(raw);
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(bytes.length).putInt((int) crc.getValue()).flip();
+            ByteBuffer body = ByteBuffer.wrap(bytes);
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(new ByteBuffer[]{header, body});
+            }
+            size += RECORD_HEADER_SIZE + bytes.length;
+            return RECORD_HEADER_SIZE + bytes.length;
+        }
+
+        void close() throws IOException {
+            if (codec != null) {
+                codec.close();
+            }
+            channel.close();
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        closeActiveSegment();
+        long segmentId = activeSegmentId;
+        activeWriter = new SegmentWriter(segmentPath(segmentId), encoding);
+        segmentIds.add(segmentId);
+        activeSegmentId = segmentId + 1;
+        tailSize = activeWriter.size;
+        stateChanged = true;
+    }
+
+    private void closeActiveSegment() throws IOException {
+        if (activeWriter != null) {
+            sync();
+            activeWriter.close();
+            activeWriter = null;
+        }
+    }
+
+    /**
+     * Closes the segment being appended to and returns every segment
+     * written so far, oldest first. New appends go to a new segment.
+     */
+    public synchronized List<Long> sealSegments() throws IOException {
+        lockJournal();
+        try {
+            seal();
+            return new ArrayList<>(segmentIds);
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    private void seal() throws IOException {
+        closeActiveSegment();
+        if (tailSize > 0) {
+            tailSize = 0;
+            stateChanged = true;
+        }
+    }
+
+    /**
+     * Streams the segment's valid records to the handler
+     */
+    public void readSegment(long segmentId, RecordHandler handler) throws IOException {
+        readRecords(segmentId, SEGMENT_HEADER_SIZE, Long.MAX_VALUE, handler, false);
+    }
+
+    /**
+     * Streams the valid records between the two offsets of the segment to the
+     * handler. A record that doesn't match its checksum is skipped and the
+     * read goes on with the next one. If the records can't be followed up to
+     * toOffset, because a record's length is damaged, this throws so the
+     * caller doesn't treat the range as read.
+     */
+    public void readSegment(long segmentId, long fromOffset, long toOffset, RecordHandler handler) throws IOException {
+        readRecords(segmentId, fromOffset, toOffset, handler, true);
+    }
+
+    /**
+     * Streams the valid records between the offsets, skipping the ones that
+     * don't match their checksum. Without complete the read just stops at a
+     * damaged length, nothing after it can be found. The segment's errors
+     * are thrown as UnreadableSegmentException, the handler's as they are.
+     */
+    private void readRecords(long segmentId, long fromOffset, long toOffset, RecordHandler handler,
+                             boolean complete) throws IOException {
+        Path path = segmentPath(segmentId);
+        RecordHandler wrapped = payload -> {
+            try {
+                handler.accept(payload);
+            } catch (IOException e) {
+                throw new HandlerException(e);
+            }
+        };
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = Math.min(toOffset, channel.size());
+            long[] damaged = new long[1];
+            long validEnd = scan(channel, fromOffset, end, wrapped, damaged);
+            if (damaged[0] > 0) {
+                log.warn("Code Time: Skipped " + damaged[0] + " damaged records in " + path.getFileName());
+            }
+            if (validEnd < end) {
+                if (complete) {
+                    throw new UnreadableSegmentException(segmentId,
+                            "Damaged record at offset " + validEnd + " of " + path.getFileName(), null);
+                }
+                log.warn("Code Time: Skipping the records after a damaged one at offset " + validEnd + " of " + path.getFileName());
+            }
+        } catch (HandlerException e) {
+            throw (IOException) e.getCause();
+        } catch (UnreadableSegmentException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UnreadableSegmentException(segmentId,
+                    "Unable to read " + path.getFileName() + ", error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the offset of the first record in a segment
+     */
+    public long getFirstRecordOffset() {
+        return SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Returns the offset after the records that fit into a chunk starting at
+     * the given offset. Only the record headers are read. A chunk holds at
+     * least one record, so the offset doesn't move only at the segment's end.
+     */
+    public long findChunkEnd(long segmentId, long fromOffset, int maxRecords, long maxBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ)) {
+            return skipRecords(channel, fromOffset, channel.size(), maxRecords, maxBytes, new long[2]);
+        }
+    }
+
+    /**
+     * Walks the record headers from the offset and returns the offset after
+     * the records that fit the limits, always taking at least one. Adds the
+     * record count and their bytes to the totals.
+     */
+    private static long skipRecords(FileChannel channel, long fromOffset, long size,
+                                    long maxRecords, long maxBytes, long[] totals) throws IOException {
+        long offset = Math.max(fromOffset, SEGMENT_HEADER_SIZE);
+        long bytes = 0;
+        long records = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (records < maxRecords && offset + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, offset + header.position()) > 0) {
+                // keep reading until the header is complete
+            }
+            int length = header.getInt(0);
+            long recordSize = RECORD_HEADER_SIZE + (long) length;
+            if (length < 0 || length > MAX_RECORD_SIZE || offset + recordSize > size) {
+                break;
+            }
+            if (records > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            bytes += length;
+            records++;
+            offset += recordSize;
+            totals[0]++;
+            totals[1] += recordSize;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the records from the offset up to the size and returns the offset
+     * after the last one that's complete and matches its checksum
+     */
+    private long scan(FileChannel channel, long fromOffset, long size, RecordHandler handler) throws IOException {
+        return scan(channel, fromOffset, size, handler, null);
+    }
+
+    /**
+     * Same as above, but when damaged is given a record that doesn't match its
+     * checksum is counted there and skipped instead of ending the scan. Only a
+     * record whose length can't be right still ends it.
+     */
+    private long scan(FileChannel channel, long fromOffset, long size, RecordHandler handler,
+                      long[] damaged) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        if (channel.read(magic, 0) < SEGMENT_HEADER_SIZE
+                || (magic.getInt(0) != MAGIC && magic.getInt(0) != MAGIC_DEFLATE)) {
+            return 0;
+        }
+        boolean compressed = magic.getInt(0) == MAGIC_DEFLATE;
+        // records are only decoded when someone wants them
+        try (SoftwareCoJournalCodec codec = (compressed && handler != null) ? new SoftwareCoJournalCodec() : null) {
+            byte[] dictionary = null;
+            long offset = Math.max(fromOffset, SEGMENT_HEADER_SIZE);
+            if (codec != null && offset > SEGMENT_HEADER_SIZE) {
+                dictionary = readDictionary(channel, codec);
+            }
+            channel.position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            CRC32 crc = new CRC32();
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE || offset + RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    if (damaged == null) {
+                        break;
+                    }
+                    if (codec != null && dictionary == null) {
+                        // the records after it can't be decoded without it
+                        throw new IOException("Damaged first record in a compressed journal segment");
+                    }
+                    damaged[0]++;
+                    offset += RECORD_HEADER_SIZE + length;
+                    continue;
+                }
+                if (handler != null) {
+                    if (codec != null) {
+                        bytes = codec.inflate(bytes, dictionary);
+                        if (dictionary == null) {
+                            dictionary = SoftwareCoJournalCodec.segmentDictionary(bytes);
+                        }
+                    }
+                    handler.accept(new String(bytes, StandardCharsets.UTF_8));
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Decodes a compressed segment's first record into the dictionary for the others
+     */
+    private byte[] readDictionary(FileChannel channel, SoftwareCoJournalCodec codec) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, SEGMENT_HEADER_SIZE + header.position()) > 0) {
+            // keep reading until the header is complete
+        }
+        int length = header.getInt(0);
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Damaged first record in a compressed journal segment");
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        while (body.hasRemaining()
+                && channel.read(body, SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + body.position()) > 0) {
+            // keep reading until the record is complete
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.position());
+        if (body.hasRemaining() || (int) crc.getValue() != header.getInt(4)) {
+            throw new IOException("Damaged first record in a compressed journal segment");
+        }
+        return SoftwareCoJournalCodec.segmentDictionary(codec.inflate(body.array(), null));
+    }
+
+    /**
+     * Rewrites a run of undelivered segments, up to the end of the journal,
+     * into a single new segment. The segments before the run are kept.
+     */
+    public class Compaction implements Closeable {
+        private final List<Long> inputs;
+        private final Cursor from;
+        private final Cursor sentBefore;
+        private final long outputId;
+        private final Path outputPath;
+        private SegmentWriter output = null;
+        private boolean committed = false;
+        private long writtenBytes = 0;
+        private long writtenRecords = 0;
+        // the output's records before it were sent already
+        private Cursor sentOutput = null;
+
+        Compaction(List<Long> inputs, Cursor from, Cursor sentBefore, long outputId) {
+            this.inputs = inputs;
+            this.from = from;
+            this.sentBefore = sentBefore;
+            this.outputId = outputId;
+            this.outputPath = segmentPath(outputId).resolveSibling(
+                    segmentPath(outputId).getFileName() + COMPACTING_SUFFIX);
+        }
+
+        public List<Long> getInputs() {
+            return inputs;
+        }
+
+        public long getOutputId() {
+            return outputId;
+        }
+
+        /**
+         * Bytes of the records written to the compacted segment so far
+         */
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * Streams the records being compacted
+         */
+        public void read(RecordHandler handler) throws IOException {
+            read(handler, handler);
+        }
+
+        /**
+         * Streams the records being compacted, the ones that may have been
+         * sent already go to sentHandler
+         */
+        public void read(RecordHandler sentHandler, RecordHandler handler) throws IOException {
+            for (Long segmentId : inputs) {
+                long fromOffset = (segmentId == from.getSegmentId()) ? from.getOffset() : SEGMENT_HEADER_SIZE;
+                if (segmentId < sentBefore.getSegmentId()) {
+                    readRecords(segmentId, fromOffset, Long.MAX_VALUE, sentHandler, false);
+                } else if (segmentId == sentBefore.getSegmentId()) {
+                    long sentOffset = Math.max(fromOffset, sentBefore.getOffset());
+                    readRecords(segmentId, fromOffset, sentOffset, sentHandler, false);
+                    readRecords(segmentId, sentOffset, Long.MAX_VALUE, handler, false);
+                } else {
+                    readRecords(segmentId, fromOffset, Long.MAX_VALUE, handler, false);
+                }
+            }
+        }
+
+        /**
+         * Marks the records written so far as possibly sent, write the ones
+         * passed to sentHandler first and then call this
+         */
+        public void markWrittenAsSent() {
+            if (output != null) {
+                sentOutput = new Cursor(outputId, output.size);
+            }
+        }
+
+        public void write(String payload) throws IOException {
+            if (output == null) {
+                output = new SegmentWriter(outputPath, encoding);
+            }
+            writtenBytes += output.write(payload.getBytes(StandardCharsets.UTF_8));
+            writtenRecords++;
+        }
+
+        /**
+         * Replaces the inputs with the compacted segment. Writing the
+         * compaction file is what commits it, see recoverCompaction.
+         */
+        public void commit() throws IOException {
+            if (output == null) {
+                output = new SegmentWriter(outputPath, encoding);
+            }
+            output.channel.force(true);
+            output.close();
+            synchronized (SoftwareCoJournal.this) {
+                lockJournal();
+                try {
+                    if (inputs.isEmpty()) {
+                        Files.deleteIfExists(outputPath);
+                    } else {
+                        long first = inputs.get(0);
+                        long last = inputs.get(inputs.size() - 1);
+                        Cursor inputStart = new Cursor(first, SEGMENT_HEADER_SIZE);
+                        Cursor cursor = SoftwareCoJournal.this.committed;
+                        long[] replaced = measure(isAfter(cursor, inputStart) ? cursor : inputStart,
+                                new Cursor(last, Long.MAX_VALUE));
+                        long sentOffset = (sentOutput != null) ? sentOutput.getOffset() : -1;
+                        writeCompactionFile(outputId, first, last, sentOffset);
+                        finishCompaction(outputId, first, last, sentOffset);
+                        recordCount = Math.max(0, recordCount - replaced[0]) + writtenRecords;
+                        backlogBytes = Math.max(0, backlogBytes - replaced[1]) + writtenBytes;
+                    }
+                    stateChanged = true;
+                } finally {
+                    unlockJournal();
+                }
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                if (output != null) {
+                    output.close();
+                }
+                Files.deleteIfExists(outputPath);
+            }
+        }
+    }
+
+    /**
+     * Compacts every undelivered segment, see beginCompaction(long)
+     */
+    public Compaction beginCompaction() throws IOException {
+        return beginCompaction(-1);
+    }
+
+    /**
+     * Seals the journal and reserves the id of the compacted segment, it sorts
+     * after every segment being compacted and before any later append. Only
+     * the undelivered segments after afterSegmentId are compacted. The caller
+     * has to keep uploads from moving the cursor until it's closed.
+     */
+    public synchronized Compaction beginCompaction(long afterSegmentId) throws IOException {
+        lockJournal();
+        try {
+            // a compaction the previous uploading process didn't finish
+            if (recoverCompaction()) {
+                long[] backlog = measure(committed, new Cursor(Long.MAX_VALUE, 0));
+                recordCount = backlog[0];
+                backlogBytes = backlog[1];
+            }
+            seal();
+            List<Long> inputs = new ArrayList<>();
+            for (Long id : segmentIds) {
+                if (id >= committed.getSegmentId() && id > afterSegmentId) {
+                    inputs.add(id);
+                }
+            }
+            long outputId = activeSegmentId++;
+            stateChanged = true;
+            return new Compaction(inputs, committed, sent, outputId);
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    /**
+     * Finishes a compaction that was committed but not yet applied, and
+     * deletes the output of one that wasn't committed. Returns true if the
+     * segments changed.
+     */
+    private boolean recoverCompaction() throws IOException {
+        boolean recovered = finishCommittedCompaction();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + COMPACTING_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                Long id = parseSegmentId(path.resolveSibling(name.substring(0, name.length() - COMPACTING_SUFFIX.length())));
+                if (id != null && id == committed.getSegmentId() && committed.getOffset() == SEGMENT_HEADER_SIZE) {
+                    // committed by moving the cursor, the way older versions did it
+                    Files.move(path, segmentPath(id), StandardCopyOption.REPLACE_EXISTING);
+                    segmentIds.add(id);
+                    Collections.sort(segmentIds);
+                    recovered = true;
+                } else {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Applies the compaction the compaction file records, returns false if
+     * there isn't one
+     */
+    private boolean finishCommittedCompaction() throws IOException {
+        long[] compaction = readCompactionFile();
+        if (compaction == null) {
+            return false;
+        }
+        finishCompaction(compaction[0], compaction[1], compaction[2], compaction[3]);
+        return true;
+    }
+
+    /**
+     * Puts the compacted segment in place of the segments from first to
+     * last. Every step can be repeated, so a crash part way through is
+     * finished by running it again.
+     */
+    private void finishCompaction(long outputId, long first, long last, long sentOffset) throws IOException {
+        Path outputPath = segmentPath(outputId);
+        Path compactingPath = outputPath.resolveSibling(outputPath.getFileName() + COMPACTING_SUFFIX);
+        if (Files.exists(compactingPath)) {
+            Files.move(compactingPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (Files.exists(outputPath) && !segmentIds.contains(outputId)) {
+            segmentIds.add(outputId);
+            Collections.sort(segmentIds);
+        }
+        if (sentOffset >= 0 && isAfter(new Cursor(outputId, sentOffset), sent)) {
+            sent = new Cursor(outputId, sentOffset);
+            writeCursorFile(SENT_FILE, sent);
+        }
+        if (committed.getSegmentId() >= first && committed.getSegmentId() <= last) {
+            // the cursor's records that weren't delivered yet are in the compacted segment
+            committed = new Cursor(outputId, SEGMENT_HEADER_SIZE);
+            writeCursorFile(CURSOR_FILE, committed);
+        }
+        Iterator<Long> ids = segmentIds.iterator();
+        while (ids.hasNext()) {
+            long id = ids.next();
+            if (id >= first && id <= last) {
+                Files.deleteIfExists(segmentPath(id));
+                ids.remove();
+            }
+        }
+        Files.deleteIfExists(directory.resolve(COMPACTION_FILE));
+    }
+
+    private void writeCompactionFile(long outputId, long first, long last, long sentOffset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COMPACTION_SIZE);
+        buffer.putLong(outputId).putLong(first).putLong(last).putLong(sentOffset);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, COMPACTION_SIZE - 4);
+        buffer.putInt((int) crc.getValue()).flip();
+        writeFile(COMPACTION_FILE, buffer);
+    }
+
+    /**
+     * Returns the output id, first and last input and sent offset of a
+     * committed compaction, null if there isn't one
+     */
+    private long[] readCompactionFile() {
+        Path compactionFile = directory.resolve(COMPACTION_FILE);
+        if (!Files.exists(compactionFile)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(compactionFile);
+            if (bytes.length == COMPACTION_SIZE) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, COMPACTION_SIZE - 4);
+                if (buffer.getInt(COMPACTION_SIZE - 4) == (int) crc.getValue()) {
+                    return new long[]{buffer.getLong(0), buffer.getLong(8), buffer.getLong(16), buffer.getLong(24)};
+                }
+            }
+            // written with an atomic rename, it can only be damaged on disk
+            log.warn("Code Time: Deleting a damaged journal " + COMPACTION_FILE + " file");
+            Files.deleteIfExists(compactionFile);
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to read the journal " + COMPACTION_FILE + " file, error: " + e.getMessage());
+        }
+        return null;
+    }
+
+    public Cursor getCommittedCursor() throws IOException {
+        synchronized (this) {
+            lockJournal();
+            unlockJournal();
+        }
+        return committed;
+    }
+
+    /**
+     * Durably records that every record before the cursor was delivered and
+     * deletes the segments that lie completely before it. The cursor file is
+     * replaced with an atomic rename so a crash leaves the old or the new one.
+     */
+    public synchronized void commitCursor(Cursor cursor) throws IOException {
+        lockJournal();
+        try {
+            writeCursor(cursor);
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    private void writeCursor(Cursor cursor) throws IOException {
+        Cursor current = committed;
+        if (!isAfter(cursor, current)) {
+            return;
+        }
+        writeCursorFile(CURSOR_FILE, cursor);
+        long[] delivered = measure(current, cursor);
+        recordCount = Math.max(0, recordCount - delivered[0]);
+        backlogBytes = Math.max(0, backlogBytes - delivered[1]);
+        committed = cursor;
+        stateChanged = true;
+        deleteSegmentsBefore(cursor.getSegmentId());
+    }
+
+    /**
+     * Durably records that the records before the cursor are being sent, so
+     * they may reach the api even if they're never acknowledged. Compactions
+     * keep those records as they are, a resend then carries the same
+     * idempotency keys.
+     */
+    public synchronized void markSent(Cursor cursor) throws IOException {
+        lockJournal();
+        try {
+            if (isAfter(cursor, sent)) {
+                writeCursorFile(SENT_FILE, cursor);
+                sent = cursor;
+                stateChanged = true;
+            }
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    public Cursor getSentCursor() throws IOException {
+        synchronized (this) {
+            lockJournal();
+            unlockJournal();
+        }
+        return sent;
+    }
+
+    /**
+     * Drops the oldest undelivered records, by moving the cursor past them,
+     * until the backlog fits in maxBytes. Only the record headers are read.
+     * Returns the number of records dropped.
+     */
+    public synchronized long dropOldest(long maxBytes) throws IOException {
+        lockJournal();
+        try {
+            long excess = backlogBytes - maxBytes;
+            if (excess <= 0) {
+                return 0;
+            }
+            long[] totals = new long[2];
+            Cursor cursor = committed;
+            for (Long segmentId : segmentIds) {
+                if (segmentId < committed.getSegmentId()) {
+                    continue;
+                }
+                if (totals[1] >= excess || (tailSize > 0 && segmentId == activeSegmentId - 1)) {
+                    // leave the segment being appended to alone
+                    break;
+                }
+                long offset = (segmentId == committed.getSegmentId()) ? committed.getOffset() : SEGMENT_HEADER_SIZE;
+                try (FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    while (totals[1] < excess) {
+                        long next = skipRecords(channel, offset, size, 1, Long.MAX_VALUE, totals);
+                        if (next == offset) {
+                            break;
+                        }
+                        offset = next;
+                    }
+                    cursor = (offset >= size)
+                            ? new Cursor(segmentId + 1, SEGMENT_HEADER_SIZE)
+                            : new Cursor(segmentId, offset);
+                }
+            }
+            writeCursor(cursor);
+            return totals[0];
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    /**
+     * Sets aside a segment that can't be read, so uploads and compactions go
+     * on with the rest of the backlog instead of failing on it every time.
+     * It's renamed rather than deleted, its records are no longer sent.
+     */
+    public synchronized void quarantineSegment(long segmentId) throws IOException {
+        lockJournal();
+        try {
+            if (!segmentIds.contains(segmentId) || segmentId < committed.getSegmentId()) {
+                return;
+            }
+            if (tailSize > 0 && segmentId == activeSegmentId - 1) {
+                seal();
+            }
+            Path path = segmentPath(segmentId);
+            Files.move(path, path.resolveSibling(path.getFileName() + DAMAGED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            segmentIds.remove(Long.valueOf(segmentId));
+            if (committed.getSegmentId() == segmentId) {
+                committed = new Cursor(segmentId + 1, SEGMENT_HEADER_SIZE);
+                writeCursorFile(CURSOR_FILE, committed);
+            }
+            long[] backlog = measure(committed, new Cursor(Long.MAX_VALUE, 0));
+            recordCount = backlog[0];
+            backlogBytes = backlog[1];
+            stateChanged = true;
+            log.warn("Code Time: Set aside the unreadable journal segment " + path.getFileName() +
+                    ", its payloads won't be sent");
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    private static boolean isAfter(Cursor cursor, Cursor other) {
+        return cursor.getSegmentId() > other.getSegmentId()
+                || (cursor.getSegmentId() == other.getSegmentId() && cursor.getOffset() > other.getOffset());
+    }
+
+    /**
+     * Replaces the cursor file with an atomic rename so a crash leaves the
+     * old or the new one
+     */
+    private void writeCursorFile(String name, Cursor cursor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CURSOR_SIZE);
+        buffer.putLong(cursor.getSegmentId()).putLong(cursor.getOffset());
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 16);
+        buffer.putInt((int) crc.getValue()).flip();
+        writeFile(name, buffer);
+    }
+
+    private void writeFile(String name, ByteBuffer buffer) throws IOException {
+        Path file = directory.resolve(name);
+        Path tempFile = directory.resolve(name + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Cursor readCursor(String name) {
+        Path cursorFile = directory.resolve(name);
+        if (Files.exists(cursorFile)) {
+            try {
+                byte[] bytes = Files.readAllBytes(cursorFile);
+                if (bytes.length == CURSOR_SIZE) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, 0, 16);
+                    Cursor cursor = new Cursor(buffer.getLong(0), buffer.getLong(8));
+                    if (buffer.getInt(16) == (int) crc.getValue()) {
+                        return cursor;
+                    }
+                }
+                log.warn("Code Time: Ignoring a damaged journal " + name + " file");
+            } catch (IOException e) {
+                log.warn("Code Time: Unable to read the journal " + name + " file, error: " + e.getMessage());
+            }
+        }
+        return new Cursor(0, SEGMENT_HEADER_SIZE);
+    }
+
+    /**
+     * Deletes the segments with an id lower than the given one, their records
+     * have all been delivered
+     */
+    private void deleteSegmentsBefore(long segmentId) {
+        Iterator<Long> ids = segmentIds.iterator();
+        while (ids.hasNext()) {
+            long id = ids.next();
+            if (id >= segmentId || (tailSize > 0 && id == activeSegmentId - 1)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(segmentPath(id));
+                ids.remove();
+            } catch (IOException e) {
+                log.warn("Code Time: Unable to delete journal segment " + id + ", error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the record count and bytes between two cursors, reading only
+     * the record headers
+     */
+    private long[] measure(Cursor from, Cursor to) throws IOException {
+        long[] totals = new long[2];
+        for (Long segmentId : segmentIds) {
+            if (segmentId < from.getSegmentId() || segmentId > to.getSegmentId()) {
+                continue;
+            }
+            long fromOffset = (segmentId == from.getSegmentId()) ? from.getOffset() : SEGMENT_HEADER_SIZE;
+            long toOffset = (segmentId == to.getSegmentId()) ? to.getOffset() : Long.MAX_VALUE;
+            try (FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ)) {
+                skipRecords(channel, fromOffset, Math.min(toOffset, channel.size()),
+                        Long.MAX_VALUE, Long.MAX_VALUE, totals);
+            } catch (NoSuchFileException e) {
+                // already deleted
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * The bytes on disk taken by the records that haven't been delivered
+     */
+    public synchronized long getBacklogBytes() throws IOException {
+        lockJournal();
+        unlockJournal();
+        return backlogBytes;
+    }
+
+    public synchronized long getRecordCount() throws IOException {
+        lockJournal();
+        unlockJournal();
+        return recordCount;
+    }
+
+    public synchronized boolean isEmpty() throws IOException {
+        lockJournal();
+        unlockJournal();
+        return segmentIds.isEmpty();
+    }
+
+    public synchronized void close() {
+        try {
+            closeActiveSegment();
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to close the journal, error: " + e.getMessage());
+        }
+        processLock.close();
+        // catch up with the shared state if it's used again
+        generation = -1;
+    }
+
+    /**
+     * Moves the payloads of an old data.json file into the journal. Each
+     * line of the file is one json payload.
+     */
+    public synchronized void importLegacyFile(File legacyFile) throws IOException {
+        // held throughout so only one process moves the file
+        lockJournal();
+        try {
+            if (!legacyFile.exists()) {
+                return;
+            }
+            // data.json was written with the platform charset
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(legacyFile), Charset.defaultCharset()))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() > 0) {
+                        append(line);
+                    }
+                }
+            }
+            sync();
+            if (!legacyFile.delete()) {
+                log.warn("Code Time: Unable to delete " + legacyFile + " after moving it into the journal");
+            }
+        } finally {
+            unlockJournal();
+        }
+    }
+
+    private Path segmentPath(long segmentId) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+    }
+
+    private static Long parseSegmentId(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate encoding for the journal's compressed segments. A segment's first
+ * record is compressed against a fixed dictionary of the payload's field
+ * names. Every later record is compressed against that dictionary plus the
+ * decoded first record, which already holds the project and the file paths,
+ * so a typical payload shrinks to a few dozen bytes. Records decode on their
+ * own given the segment's first record.
+ */
+public class SoftwareCoJournalCodec implements AutoCloseable {
+
+    // deflate only looks back 32KB, the most common content goes last
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] FIELD_DICTIONARY = (
+            "\"timezone\":\"America/\"Europe/\"Asia/\"os\":\"\"local_start\":\"start\":\"keystrokes\":\"" +
+            "\"pluginId\":\"version\":\"\"project\":{\"name\":\"\"directory\":\"\"resource\":{" +
+            "\"identifier\":\"\"tag\":\"\"branch\":\"\"email\":\"}}/Users//home/C:\\\\Users\\\\" +
+            "/src/main/java/.java\",\".kt\",\".ts\",\".js\",\".py\",\"" +
+            "{\"type\":\"Events\",\"source\":{\"\":{\"add\":0,\"paste\":0,\"open\":0,\"close\":0," +
+            "\"delete\":0,\"length\":0,\"netkeys\":0,\"lines\":0,\"linesAdded\":0,\"linesRemoved\":0,\"syntax\":0}"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] buffer = new byte[8 * 1024];
+
+    /**
+     * Returns the dictionary for the records after the segment's first one
+     */
+    public static byte[] segmentDictionary(byte[] firstRecord) {
+        byte[] dictionary = Arrays.copyOf(FIELD_DICTIONARY, FIELD_DICTIONARY.length + firstRecord.length);
+        System.arraycopy(firstRecord, 0, dictionary, FIELD_DICTIONARY.length, firstRecord.length);
+        if (dictionary.length > MAX_DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+        }
+        return dictionary;
+    }
+
+    /**
+     * @param dictionary the segment dictionary, null for the segment's first record
+     */
+    public byte[] deflate(byte[] raw, byte[] dictionary) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        }
+        deflater.reset();
+        deflater.setDictionary((dictionary != null) ? dictionary : FIELD_DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 16);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param dictionary the segment dictionary, null for the segment's first record
+     */
+    public byte[] inflate(byte[] stored, byte[] dictionary) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(stored);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 8);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary((dictionary != null) ? dictionary : FIELD_DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Truncated compressed journal record");
+                    }
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Unable to decode a compressed journal record", e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
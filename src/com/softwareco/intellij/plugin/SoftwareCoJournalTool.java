@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line tool for moving existing offline data into the journal and
+ * between its plain and compressed encodings, run it with the plugin jar and
+ * its libraries on the classpath.
+ *
+ *   import <data.json> <journal dir> [--deflate]
+ *   convert <journal dir> [--deflate | --plain]
+ *   stats <journal dir>
+ *
+ * Close the IDEs before a convert, it rewrites the backlog the way the
+ * uploading IDE's compaction does.
+ */
+public class SoftwareCoJournalTool {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        List<String> options = Arrays.asList(args);
+        SoftwareCoJournal.encoding = options.contains("--deflate")
+                ? SoftwareCoJournal.Encoding.DEFLATE : SoftwareCoJournal.Encoding.PLAIN;
+
+        SoftwareCoJournal journal;
+        switch (args[0]) {
+            case "import":
+                if (args.length < 3) {
+                    usage();
+                    return;
+                }
+                journal = new SoftwareCoJournal(Paths.get(args[2]));
+                // the file is deleted once its payloads are in the journal
+                journal.importLegacyFile(new File(args[1]));
+                break;
+            case "convert":
+                journal = new SoftwareCoJournal(Paths.get(args[1]));
+                convert(journal);
+                break;
+            case "stats":
+                journal = new SoftwareCoJournal(Paths.get(args[1]));
+                break;
+            default:
+                usage();
+                return;
+        }
+        try {
+            printStats(Paths.get(args[0].equals("import") ? args[2] : args[1]), journal);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Rewrites the undelivered records in the current encoding
+     */
+    private static void convert(SoftwareCoJournal journal) throws IOException {
+        try (SoftwareCoJournal.Compaction compaction = journal.beginCompaction()) {
+            if (compaction.getInputs().isEmpty()) {
+                return;
+            }
+            compaction.read(compaction::write);
+            compaction.commit();
+        }
+    }
+
+    private static void printStats(Path directory, SoftwareCoJournal journal) throws IOException {
+        System.out.println(directory + ": " + journal.getRecordCount() + " records, " +
+                journal.getBacklogBytes() + " bytes");
+    }
+
+    private static void usage() {
+        System.out.println("usage: SoftwareCoJournalTool import <data.json> <journal dir> [--deflate]");
+        System.out.println("       SoftwareCoJournalTool convert <journal dir> [--deflate | --plain]");
+        System.out.println("       SoftwareCoJournalTool stats <journal dir>");
+    }
+}
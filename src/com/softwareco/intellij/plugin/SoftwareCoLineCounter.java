@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Line counts for opened files. Files with a loaded document use the
+ * document's line index, others are counted with a buffered scan of their
+ * bytes as long as they're under the size threshold. Counts are cached per file and
+ * dropped when the file's VFS modification stamp changes.
+ */
+public class SoftwareCoLineCounter {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoLineCounter");
+
+    private static SoftwareCoLineCounter instance = null;
+
+    // files larger than this are not read from disk, the line count is reported as 0
+    private static final long MAX_SCANNED_FILE_SIZE = 10 * 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_FILES = 500;
+
+    private final Map<String, CachedLineCount> cache = new LinkedHashMap<String, CachedLineCount>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedLineCount> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    };
+
+    public static SoftwareCoLineCounter getInstance() {
+        if (instance == null) {
+            instance = new SoftwareCoLineCounter();
+        }
+        return instance;
+    }
+
+    private static class CachedLineCount {
+        final long modificationStamp;
+        final int lines;
+
+        CachedLineCount(long modificationStamp, int lines) {
+            this.modificationStamp = modificationStamp;
+            this.lines = lines;
+        }
+    }
+
+    public int getLineCount(VirtualFile file) {
+        if (file == null || !file.isValid() || file.isDirectory()) {
+            return 0;
+        }
+
+        // the already loaded document is the cheapest and most current source
+        FileDocumentManager fileDocumentManager = FileDocumentManager.getInstance();
+        Document document = (fileDocumentManager != null) ? fileDocumentManager.getCachedDocument(file) : null;
+        if (document != null) {
+            return document.getLineCount();
+        }
+
+        String path = file.getPath();
+        long modificationStamp = file.getModificationStamp();
+        synchronized (cache) {
+            CachedLineCount cached = cache.get(path);
+            if (cached != null && cached.modificationStamp == modificationStamp) {
+                return cached.lines;
+            }
+        }
+
+        int lines = 0;
+        if (file.isInLocalFileSystem() && !file.getFileType().isBinary()
+                && file.getLength() <= MAX_SCANNED_FILE_SIZE) {
+            lines = countLines(path);
+        }
+
+        synchronized (cache) {
+            cache.put(path, new CachedLineCount(modificationStamp, lines));
+        }
+        return lines;
+    }
+
+    /**
+     * Counts the lines the same way Files.lines would, a line ends at \n, \r
+     * or \r\n and a trailing line without a line break still counts
+     */
+    protected int countLines(String fileName) {
+        try (InputStream in = Files.newInputStream(Paths.get(fileName))) {
+            byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+            int lines = 0;
+            boolean inLine = false;
+            boolean afterCarriageReturn = false;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        if (!afterCarriageReturn) {
+                            // the \n of a \r\n was counted with the \r
+                            lines++;
+                        }
+                        inLine = false;
+                        afterCarriageReturn = false;
+                    } else if (b == '\r') {
+                        lines++;
+                        inLine = false;
+                        afterCarriageReturn = true;
+                    } else {
+                        inLine = true;
+                        afterCarriageReturn = false;
+                    }
+                }
+            }
+            if (inLine) {
+                lines++;
+            }
+            return lines;
+        } catch (IOException e) {
+            log.warn("Code Time: unable to get the line count for file " + fileName);
+            return 0;
+        }
+    }
+}
@@ -11,8 +11,8 @@ import org.apache.http.client.methods.HttpPost;
 
 import java.time.ZonedDateTime;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SoftwareCoMusicManager {
 
@@ -21,6 +21,7 @@ public class SoftwareCoMusicManager {
     private static SoftwareCoMusicManager instance = null;
 
     private JsonObject currentTrack = new JsonObject();
+    private final AtomicBoolean sendingTrack = new AtomicBoolean(false);
 
     public static SoftwareCoMusicManager getInstance() {
         if (instance == null) {
@@ -51,7 +52,7 @@ public class SoftwareCoMusicManager {
                     // update the end time on the previous track and send it as well
                     currentTrack.addProperty("end", now);
                     // send the post to end the previous track
-                    trackStr = SoftwareCo.gson.toJson(currentTrack);
+                    trackStr = toPayload(currentTrack);
                     if (trackStr != null) {
                         response = SoftwareCoUtils.makeApiCall("/data/music", HttpPost.METHOD_NAME, trackStr);
                     }
@@ -93,7 +94,7 @@ public class SoftwareCoMusicManager {
                     // update the end time on the previous track and send it as well
                     currentTrack.addProperty("end", now);
                     // send the post to end the previous track
-                    trackStr = SoftwareCo.gson.toJson(currentTrack);
+                    trackStr = toPayload(currentTrack);
                 }
 
 
@@ -104,7 +105,7 @@ public class SoftwareCoMusicManager {
                     trackInfo.addProperty("start", now);
                     trackInfo.addProperty("local_start", local_start);
 
-                    trackStr = SoftwareCo.gson.toJson(trackInfo);
+                    trackStr = toPayload(trackInfo);
 
                     // update the current track
                     cloneTrackInfoToCurrent(trackInfo);
@@ -118,6 +119,21 @@ public class SoftwareCoMusicManager {
             return response;
         }
 
+        /**
+         * Serializes the track with a key made from the track and its start
+         * and end, the start and end posts of a track get different ones
+         */
+        private String toPayload(JsonObject track) {
+            track.addProperty(SoftwareCoIdempotencyKeys.FIELD, SoftwareCoIdempotencyKeys.of("music",
+                    getString(track, "id"), getString(track, "start"), getString(track, "end")));
+            return SoftwareCo.gson.toJson(track);
+        }
+
+        private String getString(JsonObject track, String field) {
+            JsonElement value = track.get(field);
+            return (value != null && value.isJsonPrimitive()) ? value.getAsString() : "";
+        }
+
         private void cloneTrackInfoToCurrent(JsonObject trackInfo) {
             currentTrack = new JsonObject();
             currentTrack.addProperty("start", trackInfo.get("start").getAsLong());
@@ -147,27 +163,26 @@ public class SoftwareCoMusicManager {
 
 
     public void processMusicTrackInfo() {
+        if (!sendingTrack.compareAndSet(false, true)) {
+            // the last check is still waiting on the player or the api
+            return;
+        }
         MusicSendDataTask sendTask = new MusicSendDataTask();
 
-        Future<SoftwareResponse> response = SoftwareCoUtils.EXECUTOR_SERVICE.submit(sendTask);
-
-        //
-        // Handle the Future if it exist
-        //
-        if ( response != null ) {
-            SoftwareResponse httpResponse = null;
+        SoftwareCoUtils.EXECUTOR_SERVICE.supplyAsync(() -> {
             try {
-                httpResponse = response.get();
-
-                if (httpResponse != null && !httpResponse.isOk()) {
-                    String errorStr = (httpResponse != null && httpResponse.getErrorMessage() != null) ? httpResponse.getErrorMessage() : "";
-                    log.info("Code Time: Unable to get the music track response from the http request, error: " + errorStr);
-                }
-
-            } catch (InterruptedException | ExecutionException e) {
+                return sendTask.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((httpResponse, e) -> {
+            sendingTrack.set(false);
+            if (e != null) {
                 log.info("Code Time: Unable to get the music track response from the http request, error: " + e.getMessage());
+            } else if (httpResponse != null && !httpResponse.isOk()) {
+                String errorStr = (httpResponse.getErrorMessage() != null) ? httpResponse.getErrorMessage() : "";
+                log.info("Code Time: Unable to get the music track response from the http request, error: " + errorStr);
             }
-        }
-
+        });
     }
 }
@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.intellij.openapi.diagnostic.Logger;
+import com.softwareco.intellij.plugin.KeystrokeFileInfo.Metric;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the offline keystroke payloads before they're uploaded. Payloads for
+ * the same project and time bucket become one payload, the per file metrics
+ * are summed for the additive fields and the latest value is kept for lines,
+ * length and syntax. Payloads that aren't keystroke payloads are kept as is.
+ *
+ * A pass only reads the segments written since the previous one, along with
+ * the previous pass's segment while that's still small. The payloads are
+ * streamed through, at most maxOpenBuckets buckets are merged into at a time
+ * and a bucket is written out once it holds maxBucketBytes of payloads, so
+ * memory use doesn't depend on the size of the backlog.
+ *
+ * Each pass also applies the backlog caps. Payloads older than the age cap
+ * are dropped, which takes a pass over the whole backlog once the oldest
+ * payload passed it. When the backlog is over the byte cap the eviction
+ * policy either drops the oldest payloads, or first merges the whole backlog
+ * into hourly buckets and then drops the oldest if that's still not enough.
+ *
+ * Payloads that may already have been delivered are kept as they are so a
+ * resend carries the same idempotency key. Those are the ones the uploader
+ * marked sent, see SoftwareCoJournal.markSent, and the ones stored after a
+ * /data post that went out, only payloads with an unsent key are merged,
+ * see SoftwareCoIdempotencyKeys.nextUnsent. A payload without a key gets
+ * one, a merged payload keeps the key of the first one merged into it.
+ */
+public class SoftwareCoOfflineCompactor {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoOfflineCompactor");
+
+    public enum EvictionPolicy {
+        OLDEST_FIRST,
+        DOWNSAMPLE_HOURLY
+    }
+
+    private static final int HOURLY_BUCKET_MINUTES = 60;
+
+    public static int bucketMinutes = 15;
+    public static int maxOpenBuckets = 64;
+    public static long maxBucketBytes = 256 * 1024;
+    public static long maxBacklogBytes = 32 * 1024 * 1024;
+    public static int maxBacklogAgeDays = 30;
+    public static EvictionPolicy evictionPolicy = EvictionPolicy.DOWNSAMPLE_HOURLY;
+
+    private final SoftwareCoJournal journal;
+    // the segment the last pass wrote and its size, -1 before the first pass
+    private long lastOutputId = -1;
+    private long lastOutputBytes = 0;
+    // start of the oldest stored keystroke payload in seconds, 0 if not known
+    private volatile long oldestRecordStart = 0;
+    private final AtomicLong evictedRecords = new AtomicLong();
+
+    public SoftwareCoOfflineCompactor(SoftwareCoJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Compacts the records stored since the last pass. The first pass, and
+     * the ones that have to apply a cap, compact every undelivered record.
+     */
+    public void compact() throws IOException {
+        long now = System.currentTimeMillis() / 1000;
+        long minStart = now - TimeUnit.DAYS.toSeconds(maxBacklogAgeDays);
+        boolean expired = oldestRecordStart > 0 && oldestRecordStart < minStart;
+        boolean downsample = evictionPolicy == EvictionPolicy.DOWNSAMPLE_HOURLY
+                && journal.getBacklogBytes() > maxBacklogBytes;
+        boolean full = lastOutputId < 0 || expired || downsample;
+
+        long afterSegmentId = -1;
+        if (!full) {
+            // keep adding to the last pass's segment until it's a reasonable size
+            afterSegmentId = (lastOutputBytes < SoftwareCoJournal.maxSegmentBytes / 2) ? lastOutputId - 1 : lastOutputId;
+        }
+        try (SoftwareCoJournal.Compaction compaction = journal.beginCompaction(afterSegmentId)) {
+            List<Long> inputs = compaction.getInputs();
+            if (inputs.isEmpty() || (!full && inputs.size() == 1 && inputs.get(0) == lastOutputId)) {
+                if (full) {
+                    oldestRecordStart = 0;
+                }
+            } else {
+                Pass pass = new Pass(compaction, minStart, downsample ? HOURLY_BUCKET_MINUTES : bucketMinutes);
+                compaction.read(pass::passThrough, pass::add);
+                pass.finish();
+                compaction.commit();
+                lastOutputId = compaction.getOutputId();
+                lastOutputBytes = compaction.getWrittenBytes();
+                long oldest = oldestRecordStart;
+                // the segments this pass didn't read still hold the previous oldest
+                oldestRecordStart = (full || oldest == 0 || (pass.oldest != 0 && pass.oldest < oldest)) ? pass.oldest : oldest;
+                log.info("Code Time: Compacted " + pass.read + " offline payloads into " + pass.written +
+                        ((full) ? ", the whole backlog" : ""));
+            }
+        } catch (SoftwareCoJournal.UnreadableSegmentException e) {
+            // it would fail every pass, the next one goes on without it
+            log.warn("Code Time: Unable to compact the offline data, error: " + e.getMessage());
+            journal.quarantineSegment(e.getSegmentId());
+        }
+
+        long evicted = journal.dropOldest(maxBacklogBytes);
+        if (evicted > 0) {
+            evictedRecords.addAndGet(evicted);
+            log.warn("Code Time: The offline backlog is over " + maxBacklogBytes + " bytes, dropped the " +
+                    evicted + " oldest payloads");
+        }
+    }
+
+    /**
+     * One pass over the records, the ones that may have been sent are written
+     * as they're read and the others are merged into the open buckets
+     */
+    private class Pass {
+        final SoftwareCoJournal.Compaction compaction;
+        final long minStart;
+        final int minutes;
+        // the buckets still being merged into, the least recently opened first
+        final Map<String, Bucket> buckets = new LinkedHashMap<>();
+        boolean sentWritten = false;
+        int read = 0;
+        int written = 0;
+        long oldest = 0;
+
+        Pass(SoftwareCoJournal.Compaction compaction, long minStart, int minutes) {
+            this.compaction = compaction;
+            this.minStart = minStart;
+            this.minutes = minutes;
+        }
+
+        void passThrough(String payload) throws IOException {
+            read++;
+            JsonObject record = parse(payload, minStart);
+            if (record != null) {
+                write(record);
+            }
+        }
+
+        void add(String payload) throws IOException {
+            read++;
+            if (!sentWritten) {
+                // the sent records all come first
+                compaction.markWrittenAsSent();
+                sentWritten = true;
+            }
+            JsonObject record = parse(payload, minStart);
+            if (record == null) {
+                return;
+            }
+            // merging a payload the api may have counted would change what its key stands for
+            String key = SoftwareCoIdempotencyKeys.isUnsent(record) ? getBucketKey(record, minutes) : null;
+            if (key == null) {
+                write(record);
+                return;
+            }
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                if (buckets.size() >= maxOpenBuckets) {
+                    Iterator<Bucket> eldest = buckets.values().iterator();
+                    write(eldest.next().record);
+                    eldest.remove();
+                }
+                buckets.put(key, new Bucket(toBucket(record, minutes), payload.length()));
+                return;
+            }
+            merge(bucket.record, record);
+            // the merged payload is smaller than the sum, this is only a bound
+            bucket.bytes += payload.length();
+            if (bucket.bytes >= maxBucketBytes) {
+                buckets.remove(key);
+                write(bucket.record);
+            }
+        }
+
+        void finish() throws IOException {
+            if (!sentWritten) {
+                compaction.markWrittenAsSent();
+                sentWritten = true;
+            }
+            for (Bucket bucket : buckets.values()) {
+                write(bucket.record);
+            }
+            buckets.clear();
+        }
+
+        private void write(JsonObject record) throws IOException {
+            compaction.write(record.toString());
+            oldest = getOldest(oldest, record);
+            written++;
+        }
+    }
+
+    private static class Bucket {
+        final JsonObject record;
+        long bytes;
+
+        Bucket(JsonObject record, long bytes) {
+            this.record = record;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Parses a stored payload and gives it a key, null if it's dropped
+     */
+    private JsonObject parse(String payload, long minStart) {
+        JsonObject record;
+        try {
+            record = SoftwareCo.jsonParser.parse(payload).getAsJsonObject();
+        } catch (RuntimeException e) {
+            // it would break the whole batch it's sent in
+            log.warn("Code Time: Dropping an offline payload that isn't a json object");
+            return null;
+        }
+        if (getStart(record) < minStart) {
+            evictedRecords.incrementAndGet();
+            return null;
+        }
+        SoftwareCoIdempotencyKeys.ensure(record);
+        return record;
+    }
+
+    private long getOldest(long oldest, JsonObject record) {
+        long start = getStart(record);
+        return (start != Long.MAX_VALUE && (oldest == 0 || start < oldest)) ? start : oldest;
+    }
+
+    /**
+     * The payload's start in seconds, Long.MAX_VALUE if it doesn't have one
+     */
+    private long getStart(JsonObject record) {
+        JsonElement start = record.get("start");
+        return (start != null && start.isJsonPrimitive()) ? start.getAsLong() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Age of the oldest stored keystroke payload, 0 if there isn't one
+     */
+    public long getOldestRecordAgeSeconds() {
+        long oldest = oldestRecordStart;
+        return (oldest > 0) ? Math.max(0, System.currentTimeMillis() / 1000 - oldest) : 0;
+    }
+
+    public long getEvictedRecords() {
+        return evictedRecords.get();
+    }
+
+    private long getBucketStart(long start, int minutes) {
+        long bucketSeconds = TimeUnit.MINUTES.toSeconds(minutes);
+        return start - Math.floorMod(start, bucketSeconds);
+    }
+
+    private String getBucketKey(JsonObject record, int minutes) {
+        if (!record.has("source") || !record.get("source").isJsonObject() || !record.has("start")) {
+            return null;
+        }
+        JsonElement project = record.get("project");
+        return getBucketStart(record.get("start").getAsLong(), minutes) + ":" + ((project != null) ? project.toString() : "");
+    }
+
+    /**
+     * Moves the payload's start to the start of its bucket
+     */
+    private JsonObject toBucket(JsonObject record, int minutes) {
+        long start = record.get("start").getAsLong();
+        long bucketStart = getBucketStart(start, minutes);
+        record.addProperty("start", bucketStart);
+        if (record.has("local_start")) {
+            record.addProperty("local_start", record.get("local_start").getAsLong() - (start - bucketStart));
+        }
+        return record;
+    }
+
+    private void merge(JsonObject into, JsonObject record) {
+        JsonObject source = into.getAsJsonObject("source");
+        for (Map.Entry<String, JsonElement> entry : record.getAsJsonObject("source").entrySet()) {
+            JsonObject fileInfo = entry.getValue().getAsJsonObject();
+            JsonObject existing = source.getAsJsonObject(entry.getKey());
+            if (existing == null) {
+                source.add(entry.getKey(), fileInfo);
+                continue;
+            }
+            for (Metric metric : Metric.values()) {
+                JsonElement value = fileInfo.get(metric.getKey());
+                if (value == null || value.isJsonNull()) {
+                    continue;
+                }
+                if (metric.isAdditive() && existing.has(metric.getKey())) {
+                    existing.addProperty(metric.getKey(),
+                            existing.get(metric.getKey()).getAsLong() + value.getAsLong());
+                } else {
+                    existing.add(metric.getKey(), value);
+                }
+            }
+        }
+
+        long keystrokes = getLong(into, "keystrokes") + getLong(record, "keystrokes");
+        // the api expects the keystroke count as a string
+        into.addProperty("keystrokes", String.valueOf(keystrokes));
+
+        // the latest payload wins for the descriptive fields
+        for (String field : new String[]{"version", "pluginId", "os", "timezone"}) {
+            if (record.has(field)) {
+                into.add(field, record.get(field));
+            }
+        }
+    }
+
+    private long getLong(JsonObject record, String field) {
+        JsonElement value = record.get(field);
+        if (value == null || value.isJsonNull()) {
+            return 0;
+        }
+        try {
+            return value.getAsLong();
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
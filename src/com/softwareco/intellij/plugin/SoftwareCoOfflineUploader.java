@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends the journal's backlog as a sequence of /data/batch calls. Each call
+ * carries a chunk bounded by record count and payload bytes and is streamed
+ * from the journal while it's written to the connection, so memory use
+ * doesn't depend on how large the backlog got. At most maxInFlight chunks
+ * are sent at the same time and the upload stops at the first failed chunk.
+ *
+ * The upload starts at the journal's committed cursor. Accepted chunks are
+ * acknowledged in journal order, moving the cursor past them, so a failed
+ * upload only resends what wasn't accepted yet.
+ *
+ * Every payload carries an idempotency key, so a chunk can be sent more than
+ * once without being counted twice. A chunk that fails with a timeout or a
+ * server error is retried with jittered exponential backoff, and a request
+ * that's slower than hedgeDelayMillis gets a second copy sent alongside it,
+ * the first answer wins. Each chunk is marked sent in the journal before it
+ * goes out, see SoftwareCoJournal.markSent.
+ */
+public class SoftwareCoOfflineUploader {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoOfflineUploader");
+
+    public static int maxChunkRecords = 500;
+    public static long maxChunkBytes = 512 * 1024;
+    public static int maxInFlight = 2;
+    public static int maxAttempts = 3;
+    public static long retryBackoffMillis = 1000;
+    public static long hedgeDelayMillis = 4000;
+
+    // chunks wait on their requests, which run on the shared executor, so they get threads of their own
+    private static SoftwareCoExecutor chunkExecutor = null;
+
+    private final SoftwareCoJournal journal;
+    // set by the first failed chunk, or by stop
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    private final List<Chunk> chunks = new ArrayList<>();
+    // chunks before this index have been acknowledged
+    private int acknowledged = 0;
+
+    public SoftwareCoOfflineUploader(SoftwareCoJournal journal) {
+        this.journal = journal;
+    }
+
+    private static class Chunk {
+        final long segmentId;
+        final long fromOffset;
+        final long toOffset;
+        // the cursor to commit once this chunk and the ones before it were accepted
+        final SoftwareCoJournal.Cursor next;
+        volatile boolean delivered = false;
+        Future<Boolean> result;
+
+        Chunk(long segmentId, long fromOffset, long toOffset, SoftwareCoJournal.Cursor next) {
+            this.segmentId = segmentId;
+            this.fromOffset = fromOffset;
+            this.toOffset = toOffset;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Uploads the sealed segments from the committed cursor on
+     */
+    public void upload(List<Long> segments) throws IOException, InterruptedException {
+        SoftwareCoJournal.Cursor start = journal.getCommittedCursor();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            for (Long segmentId : segments) {
+                if (segmentId < start.getSegmentId()) {
+                    continue;
+                }
+                long offset = (segmentId == start.getSegmentId())
+                        ? Math.max(start.getOffset(), journal.getFirstRecordOffset())
+                        : journal.getFirstRecordOffset();
+                long end = journal.findChunkEnd(segmentId, offset, maxChunkRecords, maxChunkBytes);
+                if (end == offset) {
+                    // nothing left to send in this segment, let the cursor move past it
+                    Chunk empty = new Chunk(segmentId, offset, end,
+                            new SoftwareCoJournal.Cursor(segmentId + 1, journal.getFirstRecordOffset()));
+                    empty.delivered = true;
+                    synchronized (this) {
+                        chunks.add(empty);
+                    }
+                    acknowledge();
+                }
+                while (end > offset && !failed.get()) {
+                    long following = journal.findChunkEnd(segmentId, end, maxChunkRecords, maxChunkBytes);
+                    // the last chunk of a segment moves the cursor on to the next segment
+                    SoftwareCoJournal.Cursor next = (following == end)
+                            ? new SoftwareCoJournal.Cursor(segmentId + 1, journal.getFirstRecordOffset())
+                            : new SoftwareCoJournal.Cursor(segmentId, end);
+                    submit(new Chunk(segmentId, offset, end, next), inFlight, failed);
+                    offset = end;
+                    end = following;
+                }
+                if (failed.get()) {
+                    break;
+                }
+            }
+        } finally {
+            awaitChunks();
+        }
+    }
+
+    /**
+     * Sends no more chunks, the ones in flight still finish and are
+     * acknowledged, the rest are sent by the next upload
+     */
+    public void stop() {
+        failed.set(true);
+    }
+
+    private void submit(Chunk chunk, Semaphore inFlight, AtomicBoolean failed) throws InterruptedException, IOException {
+        inFlight.acquire();
+        try {
+            journal.markSent(chunk.next);
+        } catch (IOException e) {
+            inFlight.release();
+            throw e;
+        }
+        synchronized (this) {
+            chunks.add(chunk);
+        }
+        try {
+            chunk.result = getChunkExecutor().submit(() -> {
+                try {
+                    boolean delivered = sendChunk(chunk, failed);
+                    if (delivered) {
+                        chunk.delivered = true;
+                        acknowledge();
+                    }
+                    return delivered;
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                chunks.remove(chunk);
+            }
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private static synchronized SoftwareCoExecutor getChunkExecutor() {
+        if (chunkExecutor == null) {
+            // maxInFlight bounds the chunks, the queue only covers a chunk that's finishing up
+            chunkExecutor = new SoftwareCoExecutor("Code Time upload", maxInFlight, maxInFlight);
+        }
+        return chunkExecutor;
+    }
+
+    private boolean sendChunk(Chunk chunk, AtomicBoolean failed) throws InterruptedException {
+        for (int attempt = 1; !failed.get(); attempt++) {
+            SoftwareResponse resp = sendHedged(chunk);
+            if (resp.isOk() || resp.isDeactivated()) {
+                return true;
+            }
+            if (resp.isLocalError()) {
+                // the segment can't be read, it would fail every upload from here on
+                quarantine(chunk.segmentId);
+                break;
+            }
+            if (attempt >= maxAttempts || !isRetryable(resp)
+                    || !SoftwareCoCircuitBreaker.getInstance().isAvailable()) {
+                // a retry would only be turned away while the api is down
+                break;
+            }
+            // full jitter keeps the IDEs of a team from retrying in step
+            long backoff = retryBackoffMillis << (attempt - 1);
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+        }
+        failed.set(true);
+        return false;
+    }
+
+    /**
+     * Sends the chunk and, if there's no answer within hedgeDelayMillis, a
+     * second copy of it. Returns the first successful response, or the last
+     * failed one.
+     */
+    private SoftwareResponse sendHedged(Chunk chunk) throws InterruptedException {
+        CompletionService<SoftwareResponse> requests = new ExecutorCompletionService<>(SoftwareCoUtils.EXECUTOR_SERVICE);
+        try {
+            requests.submit(() -> post(chunk));
+        } catch (RejectedExecutionException e) {
+            // the executor is busy, retried like a request without an answer
+            SoftwareResponse rejected = new SoftwareResponse();
+            rejected.setErrorMessage(e.getMessage());
+            return rejected;
+        }
+        int pending = 1;
+        Future<SoftwareResponse> done = requests.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        if (done == null) {
+            try {
+                requests.submit(() -> post(chunk));
+                pending++;
+            } catch (RejectedExecutionException e) {
+                // no hedge, wait for the first copy
+            }
+        }
+        SoftwareResponse resp = null;
+        while (pending > 0) {
+            if (done == null) {
+                done = requests.take();
+            }
+            pending--;
+            try {
+                resp = done.get();
+            } catch (ExecutionException e) {
+                resp = new SoftwareResponse();
+                resp.setErrorMessage(e.getMessage());
+            }
+            if (resp.isOk() || resp.isDeactivated() || resp.isLocalError()) {
+                // the slower copy is dropped by the api as a duplicate
+                break;
+            }
+            done = null;
+        }
+        return resp;
+    }
+
+    private SoftwareResponse post(Chunk chunk) {
+        SoftwareJsonEntity batchPayload = new SoftwareJsonEntity(out -> {
+            out.beginArray();
+            try {
+                // each record is already a json payload
+                journal.readSegment(chunk.segmentId, chunk.fromOffset, chunk.toOffset, out::jsonValue);
+            } catch (SoftwareCoJournal.UnreadableSegmentException e) {
+                throw new SoftwareJsonEntity.ContentException(e);
+            }
+            out.endArray();
+        }, SoftwareCoUtils.gzipPayloads);
+        return SoftwareCoUtils.makeApiCall("/data/batch", batchPayload);
+    }
+
+    /**
+     * No response, a server error or being asked to slow down
+     */
+    private static boolean isRetryable(SoftwareResponse resp) {
+        int code = resp.getCode();
+        return (code == 0 && !resp.isLocalError()) || code == 408 || code == 429 || code >= 500;
+    }
+
+    private void quarantine(long segmentId) {
+        try {
+            journal.quarantineSegment(segmentId);
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to set aside journal segment " + segmentId + ", error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Commits the cursor past the accepted chunks that have no unaccepted
+     * chunk before them. Chunks can finish out of order when more than one
+     * is in flight.
+     */
+    private synchronized void acknowledge() {
+        SoftwareCoJournal.Cursor cursor = null;
+        while (acknowledged < chunks.size() && chunks.get(acknowledged).delivered) {
+            cursor = chunks.get(acknowledged).next;
+            acknowledged++;
+        }
+        if (cursor != null) {
+            try {
+                journal.commitCursor(cursor);
+            } catch (IOException e) {
+                // the chunks are sent again next time
+                log.warn("Code Time: Unable to commit the journal cursor, error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits for the chunks in flight so nothing is still reading the journal
+     */
+    private void awaitChunks() throws InterruptedException {
+        List<Chunk> submitted;
+        synchronized (this) {
+            submitted = new ArrayList<>(chunks);
+        }
+        for (Chunk chunk : submitted) {
+            if (chunk.result == null) {
+                continue;
+            }
+            try {
+                chunk.result.get();
+            } catch (ExecutionException e) {
+                log.warn("Code Time: Unable to send offline data, error: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exclusive lock on a file in ~/.software shared by every IDE running the
+ * plugin. The OS releases it when the process holding it exits, so a crashed
+ * IDE never leaves it held. The lock belongs to the process rather than a
+ * thread and is reentrant, callers keep their own threads apart.
+ *
+ * The locked file can also carry a small block of state the processes share,
+ * read and written with readState and writeState while the lock is held.
+ */
+public class SoftwareCoProcessLock {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoProcessLock");
+
+    private final Path file;
+    private FileChannel channel = null;
+    private FileLock lock = null;
+    private int holdCount = 0;
+
+    public SoftwareCoProcessLock(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Waits until no other process holds the lock
+     */
+    public synchronized void lock() throws IOException {
+        if (holdCount == 0) {
+            lock = openChannel().lock();
+        }
+        holdCount++;
+    }
+
+    /**
+     * Takes the lock if no other process holds it and keeps it until unlock
+     */
+    public synchronized boolean tryLock() throws IOException {
+        if (holdCount == 0) {
+            try {
+                lock = openChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                return false;
+            }
+        }
+        holdCount++;
+        return true;
+    }
+
+    public synchronized void unlock() {
+        if (holdCount == 0 || --holdCount > 0) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to release " + file.getFileName() + ", error: " + e.getMessage());
+        }
+        lock = null;
+    }
+
+    public synchronized boolean isHeldByCurrentProcess() {
+        return holdCount > 0;
+    }
+
+    /**
+     * Fills the buffer from the start of the file, returns false if the
+     * file doesn't hold that many bytes yet
+     */
+    public synchronized boolean readState(ByteBuffer state) throws IOException {
+        long position = 0;
+        while (state.hasRemaining()) {
+            int n = channel.read(state, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    public synchronized void writeState(ByteBuffer state) throws IOException {
+        long position = 0;
+        while (state.hasRemaining()) {
+            position += channel.write(state, position);
+        }
+    }
+
+    public synchronized void close() {
+        holdCount = 0;
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to close " + file.getFileName() + ", error: " + e.getMessage());
+        }
+        lock = null;
+        channel = null;
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+}
@@ -210,6 +210,14 @@ public class SoftwareCoRepoManager {
             commitData.addProperty("identifier", identifier);
             commitData.addProperty("tag", tag);
             commitData.addProperty("branch", branch);
+            // the same batch of commits gets the same key when it's sent again
+            String[] identity = new String[commits.size() + 2];
+            identity[0] = identifier;
+            identity[1] = branch;
+            for (int i = 0; i < commits.size(); i++) {
+                identity[i + 2] = commits.get(i).getAsJsonObject().get("commitId").getAsString();
+            }
+            commitData.addProperty(SoftwareCoIdempotencyKeys.FIELD, SoftwareCoIdempotencyKeys.of("commits", identity));
             String commitDataStr = commitData.toString();
 
             SoftwareResponse resp = SoftwareCoUtils.makeApiCall(
@@ -13,21 +13,30 @@ import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
 
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SoftwareCoSessionManager {
 
     private static SoftwareCoSessionManager instance = null;
     public static final Logger log = Logger.getInstance("SoftwareCoSessionManager");
-    private static Map<String, String> sessionMap = new HashMap<>();
+    private boolean legacyDataImported = false;
+    // uploads and compactions both move the journal cursor, only one runs at a time
+    private final ReentrantLock offlineLock = new ReentrantLock();
+    private SoftwareCoOfflineCompactor compactor = null;
+    // a compaction to apply the caps is waiting to run
+    private final AtomicBoolean capCompactionScheduled = new AtomicBoolean(false);
+    // the upload in progress, and whether new ones may start
+    private volatile SoftwareCoOfflineUploader uploader = null;
+    private volatile boolean offlineUploadsStopped = false;
+    // held by the one IDE that uploads the shared backlog
+    private SoftwareCoProcessLock primaryLock = null;
 
     public static SoftwareCoSessionManager getInstance() {
         if (instance == null) {
@@ -37,11 +46,8 @@ public class SoftwareCoSessionManager {
     }
 
     public static boolean softwareSessionFileExists() {
-        // don't auto create the file
-        String file = getSoftwareSessionFile(false);
-        // check if it exists
-        File f = new File(file);
-        return f.exists();
+        // a new session may not have been written yet
+        return SoftwareCoSessionStore.getInstance().exists();
     }
 
     public static String getCodeTimeDashboardFile() {
@@ -54,7 +60,7 @@ public class SoftwareCoSessionManager {
         return dashboardFile;
     }
 
-    private static String getSoftwareDir(boolean autoCreate) {
+    static String getSoftwareDir(boolean autoCreate) {
         String softwareDataDir = SoftwareCoUtils.getUserHomeDir();
         if (SoftwareCoUtils.isWindows()) {
             softwareDataDir += "\\.software";
@@ -91,125 +97,187 @@ public class SoftwareCoSessionManager {
         return file;
     }
 
+    /**
+     * Asks the circuit breaker, the api calls themselves tell it whether the
+     * server is reachable so there's no ping
+     */
     public static boolean isServerOnline() {
-        SoftwareResponse resp = SoftwareCoUtils.makeApiCall("/ping", HttpGet.METHOD_NAME, null);
-        boolean isOk = resp.isOk();
-        SoftwareCoUtils.updateServerStatus(isOk);
-        return isOk;
+        return SoftwareCoCircuitBreaker.getInstance().isAvailable();
+    }
+
+    /**
+     * True if this IDE is the one that uploads and compacts the offline
+     * backlog all the IDEs share. The first to take the lock keeps it until
+     * it exits, then the next IDE to ask takes over.
+     */
+    public synchronized boolean isPrimaryInstance() {
+        if (primaryLock == null) {
+            primaryLock = new SoftwareCoProcessLock(Paths.get(getSoftwareDir(true), "primary.lock"));
+        }
+        if (primaryLock.isHeldByCurrentProcess()) {
+            return true;
+        }
+        try {
+            if (primaryLock.tryLock()) {
+                log.info("Code Time: This IDE now uploads the offline data");
+                return true;
+            }
+        } catch (IOException e) {
+            log.warn("Code Time: Unable to check for another IDE running Code Time, error: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the offline payload journal, moving a data.json written by an
+     * older version of the plugin into it the first time
+     */
+    private synchronized SoftwareCoJournal getJournal() {
+        SoftwareCoJournal journal = SoftwareCoJournal.getInstance();
+        if (!legacyDataImported) {
+            legacyDataImported = true;
+            try {
+                journal.importLegacyFile(new File(getSoftwareDataStoreFile()));
+            } catch (IOException e) {
+                log.info("Code Time: Error moving the Software data store file into the journal", e);
+            }
+        }
+        return journal;
     }
 
     public void storePayload(String payload) {
         if (payload == null || payload.length() == 0) {
             return;
         }
-        if (SoftwareCoUtils.isWindows()) {
-            payload += "\r\n";
-        } else {
-            payload += "\n";
-        }
-        String dataStoreFile = getSoftwareDataStoreFile();
-        File f = new File(dataStoreFile);
         try {
-            Writer output;
-            output = new BufferedWriter(new FileWriter(f, true));  //clears file every time
-            output.append(payload);
-            output.close();
+            SoftwareCoJournal journal = getJournal();
+            journal.append(payload);
+            if (journal.getBacklogBytes() > SoftwareCoOfflineCompactor.maxBacklogBytes && isPrimaryInstance()
+                    && capCompactionScheduled.compareAndSet(false, true)) {
+                // apply the caps soon rather than on the next background pass, but not on
+                // this thread, it's often the one that just finished a failed request
+                AsyncManager.getInstance().executeOnceInSeconds(this::compactOfflineData, 5);
+            }
         } catch (Exception e) {
-            log.info("Code Time: Error appending to the Software data store file", e);
+            log.info("Code Time: Error appending to the Software data journal", e);
         }
     }
 
     public void sendOfflineData() {
-        final String dataStoreFile = getSoftwareDataStoreFile();
-        File f = new File(dataStoreFile);
-
-        if (f.exists()) {
-            // found a data file, check if there's content
-            StringBuffer sb = new StringBuffer();
-            try {
-                FileInputStream fis = new FileInputStream(f);
-
-                //Construct BufferedReader from InputStreamReader
-                BufferedReader br = new BufferedReader(new InputStreamReader(fis));
-
-                String line = null;
-                while ((line = br.readLine()) != null) {
-                    if (line.length() > 0) {
-                        sb.append(line).append(",");
-                    }
-                }
-
-                br.close();
-
-                if (sb.length() > 0) {
-                    // we have data to send
-                    String payloads = sb.toString();
-                    payloads = payloads.substring(0, payloads.lastIndexOf(","));
-                    payloads = "[" + payloads + "]";
-                    final String batchPayload = payloads;
+        if (offlineUploadsStopped || !isPrimaryInstance()) {
+            // the primary IDE sends what we stored along with its own
+            return;
+        }
+        if (!SoftwareCoCircuitBreaker.getInstance().isAvailable()) {
+            // nothing would get through, the background compaction keeps the backlog small meanwhile
+            log.info("Code Time: The Software api is unreachable, not sending offline data");
+            return;
+        }
+        SoftwareCoJournal journal = getJournal();
+        offlineLock.lock();
+        try {
+            // merge what was stored since the last pass before anything is sent
+            getCompactor(journal).compact();
+
+            // new payloads go to a fresh segment while we send these
+            List<Long> segments = journal.sealSegments();
+            if (segments.isEmpty()) {
+                log.info("Code Time: No offline data to send");
+                return;
+            }
 
-                    SoftwareResponse resp = SoftwareCoUtils.makeApiCall("/data/batch", HttpPost.METHOD_NAME, batchPayload);
-                    if (resp.isOk() || resp.isDeactivated()) {
-                        // delete the file
-                        deleteFile(dataStoreFile);
-                    }
-                } else {
-                    log.info("Code Time: No offline data to send");
-                }
-            } catch (Exception e) {
-                log.info("Code Time: Error trying to read and send offline data.", e);
+            // send the backlog in bounded chunks
+            uploader = new SoftwareCoOfflineUploader(journal);
+            if (offlineUploadsStopped) {
+                return;
             }
+            uploader.upload(segments);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.info("Code Time: Error trying to read and send offline data.", e);
+        } finally {
+            uploader = null;
+            offlineLock.unlock();
         }
     }
 
-    public static void setItem(String key, String val) {
-        sessionMap.put(key, val);
-        JsonObject jsonObj = getSoftwareSessionAsJson();
-        jsonObj.addProperty(key, val);
-
-        String content = jsonObj.toString();
-
-        String sessionFile = getSoftwareSessionFile(true);
+    /**
+     * Lets the chunks in flight finish and sends no more, the backlog is
+     * sent by the next run. Called on shutdown.
+     */
+    public void stopOfflineUploads() {
+        offlineUploadsStopped = true;
+        SoftwareCoOfflineUploader current = uploader;
+        if (current != null) {
+            current.stop();
+        }
+    }
 
+    /**
+     * Merges the payloads stored since the last pass, runs in the background
+     * so the backlog stays compact while we're offline. Skipped while an
+     * upload is running, the upload compacts before it sends.
+     */
+    public void compactOfflineData() {
+        // cleared by any pass, so a scheduled one the busy executor dropped doesn't block the next
+        capCompactionScheduled.set(false);
+        if (!isPrimaryInstance()) {
+            return;
+        }
+        SoftwareCoJournal journal = getJournal();
+        if (!offlineLock.tryLock()) {
+            log.info("Code Time: Offline data is being sent, skipping the compaction");
+            return;
+        }
         try {
-            Writer output = new BufferedWriter(new FileWriter(sessionFile));
-            output.write(content);
-            output.close();
+            getCompactor(journal).compact();
         } catch (Exception e) {
-            log.info("Code Time: Failed to write the key value pair (" + key + ", " + val + ") into the session.", e);
+            log.info("Code Time: Error trying to compact the offline data.", e);
+        } finally {
+            offlineLock.unlock();
         }
     }
 
-    public static String getItem(String key) {
-        String val = sessionMap.get(key);
-        if (val != null) {
-            return val;
+    /**
+     * Bytes on disk taken by the payloads waiting to be sent
+     */
+    public long getOfflineBacklogBytes() {
+        try {
+            return getJournal().getBacklogBytes();
+        } catch (IOException e) {
+            return 0;
         }
-        JsonObject jsonObj = getSoftwareSessionAsJson();
-        if (jsonObj != null && jsonObj.has(key) && !jsonObj.get(key).isJsonNull()) {
-            return jsonObj.get(key).getAsString();
+    }
+
+    public long getOfflineRecordCount() {
+        try {
+            return getJournal().getRecordCount();
+        } catch (IOException e) {
+            return 0;
         }
-        return null;
     }
 
-    private static JsonObject getSoftwareSessionAsJson() {
-        JsonObject data = null;
+    /**
+     * Age of the oldest payload waiting to be sent as of the last compaction
+     */
+    public long getOldestOfflineRecordAgeSeconds() {
+        return getCompactor(getJournal()).getOldestRecordAgeSeconds();
+    }
 
-        String sessionFile = getSoftwareSessionFile(true);
-        File f = new File(sessionFile);
-        if (f.exists()) {
-            try {
-                byte[] encoded = Files.readAllBytes(Paths.get(sessionFile));
-                String content = new String(encoded, Charset.defaultCharset());
-                if (content != null) {
-                    // json parse it
-                    data = SoftwareCo.jsonParser.parse(content).getAsJsonObject();
-                }
-            } catch (Exception e) {
-                log.info("Code Time: Error trying to read and json parse the session file.", e);
-            }
+    private synchronized SoftwareCoOfflineCompactor getCompactor(SoftwareCoJournal journal) {
+        if (compactor == null) {
+            compactor = new SoftwareCoOfflineCompactor(journal);
         }
-        return (data == null) ? new JsonObject() : data;
+        return compactor;
+    }
+
+    public static void setItem(String key, String val) {
+        SoftwareCoSessionStore.getInstance().setItem(key, val);
+    }
+
+    public static String getItem(String key) {
+        return SoftwareCoSessionStore.getInstance().getItem(key);
     }
 
     public void deleteFile(String file) {
@@ -258,41 +326,43 @@ public class SoftwareCoSessionManager {
         return uuid.replace("-", "");
     }
 
-    public void fetchDailyKpmSessionInfo() {
+    public CompletableFuture<Void> fetchDailyKpmSessionInfo() {
         String sessionsApi = "/sessions?summary=true";
 
-        // make an async call to get the kpm info
-        JsonObject jsonObj = SoftwareCoUtils.makeApiCall(sessionsApi, HttpGet.METHOD_NAME, null).getJsonObj();
-        if (jsonObj != null) {
+        // update the status bar once the kpm info comes back
+        return SoftwareCoUtils.makeApiCallAsync(sessionsApi, HttpGet.METHOD_NAME, null).thenAccept(resp -> {
+            JsonObject jsonObj = resp.getJsonObj();
+            if (jsonObj != null) {
 
-            long currentSessionMinutes = 0;
-            if (jsonObj.has("currentSessionMinutes")) {
-                currentSessionMinutes = jsonObj.get("currentSessionMinutes").getAsLong();
-            }
-            long currentDayMinutes = 0;
-            if (jsonObj.has("currentDayMinutes")) {
-                currentDayMinutes = jsonObj.get("currentDayMinutes").getAsLong();
-            }
-            long averageDailyMinutes = 0;
-            if (jsonObj.has("averageDailyMinutes")) {
-                averageDailyMinutes = jsonObj.get("averageDailyMinutes").getAsLong();
-            }
-            String sessionTimeStr = SoftwareCoUtils.humanizeMinutes(currentSessionMinutes);
-            String currentDayTimeStr = SoftwareCoUtils.humanizeMinutes(currentDayMinutes);
-            String averageDailyMinutesTimeStr = SoftwareCoUtils.humanizeMinutes(averageDailyMinutes);
-
-            String inFlowIcon = currentDayMinutes > averageDailyMinutes ? "rocket.png" : null;
-            String msg = currentDayTimeStr;
-            if (averageDailyMinutes > 0) {
-                msg += " | " + averageDailyMinutesTimeStr;
-            }
+                long currentSessionMinutes = 0;
+                if (jsonObj.has("currentSessionMinutes")) {
+                    currentSessionMinutes = jsonObj.get("currentSessionMinutes").getAsLong();
+                }
+                long currentDayMinutes = 0;
+                if (jsonObj.has("currentDayMinutes")) {
+                    currentDayMinutes = jsonObj.get("currentDayMinutes").getAsLong();
+                }
+                long averageDailyMinutes = 0;
+                if (jsonObj.has("averageDailyMinutes")) {
+                    averageDailyMinutes = jsonObj.get("averageDailyMinutes").getAsLong();
+                }
+                String sessionTimeStr = SoftwareCoUtils.humanizeMinutes(currentSessionMinutes);
+                String currentDayTimeStr = SoftwareCoUtils.humanizeMinutes(currentDayMinutes);
+                String averageDailyMinutesTimeStr = SoftwareCoUtils.humanizeMinutes(averageDailyMinutes);
+
+                String inFlowIcon = currentDayMinutes > averageDailyMinutes ? "rocket.png" : null;
+                String msg = currentDayTimeStr;
+                if (averageDailyMinutes > 0) {
+                    msg += " | " + averageDailyMinutesTimeStr;
+                }
 
-            SoftwareCoUtils.setStatusLineMessage(inFlowIcon, msg, "Code time today vs. your daily average. Click to see more from Code Time");
+                SoftwareCoUtils.setStatusLineMessage(inFlowIcon, msg, "Code time today vs. your daily average. Click to see more from Code Time");
 
-            if (SoftwareCoUtils.isCodeTimeMetricsFileOpen()) {
-                SoftwareCoUtils.fetchCodeTimeMetricsContent();
+                if (SoftwareCoUtils.isCodeTimeMetricsFileOpen()) {
+                    SoftwareCoUtils.fetchCodeTimeMetricsContent();
+                }
             }
-        }
+        });
     }
 
     public void statusBarClickHandler() {
@@ -304,15 +374,7 @@ public class SoftwareCoSessionManager {
 
         if (!userStatus.loggedIn && retryCount > 0) {
             final int newRetryCount = retryCount - 1;
-            new Thread(() -> {
-                try {
-                    Thread.sleep(10000);
-                    lazilyFetchUserStatus(newRetryCount);
-                }
-                catch (Exception e){
-                    System.err.println(e);
-                }
-            }).start();
+            AsyncManager.getInstance().executeOnceInSeconds(() -> lazilyFetchUserStatus(newRetryCount), 10);
         }
     }
 
@@ -323,15 +385,7 @@ public class SoftwareCoSessionManager {
         url += "/onboarding?token=" + jwt;
         BrowserUtil.browse(url);
 
-        new Thread(() -> {
-            try {
-                Thread.sleep(10000);
-                lazilyFetchUserStatus(12);
-            }
-            catch (Exception e){
-                System.err.println(e);
-            }
-        }).start();
+        AsyncManager.getInstance().executeOnceInSeconds(() -> lazilyFetchUserStatus(12), 10);
     }
 
     public static void launchWebDashboard() {
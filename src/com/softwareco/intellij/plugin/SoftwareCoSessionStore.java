@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * In memory copy of session.json. The file is parsed once and changes are
+ * written behind, a burst of setItem calls becomes one write after
+ * flushDelayMillis. The file is replaced through a temp file and a rename so
+ * a reader never sees it half written.
+ *
+ * Other processes write the file too. Its modified time and size are checked
+ * at most every checkIntervalMillis and the file is parsed again when they
+ * changed, the keys set here that haven't been written yet win. Writes hold
+ * session.lock so another IDE can't replace the file between our read and
+ * our write.
+ */
+public class SoftwareCoSessionStore {
+
+    public static final Logger log = Logger.getInstance("SoftwareCoSessionStore");
+
+    private static SoftwareCoSessionStore instance = null;
+
+    public static long flushDelayMillis = 1000;
+    public static long checkIntervalMillis = 2000;
+
+    private final Path file;
+    private final SoftwareCoProcessLock processLock;
+    private JsonObject data = null;
+    // keys set since the last write
+    private final Set<String> dirtyKeys = new HashSet<>();
+    private boolean flushScheduled = false;
+    // what the file looked like when it was last read or written
+    private long knownModified = -1;
+    private long knownSize = -1;
+    private long lastCheck = 0;
+
+    public static synchronized SoftwareCoSessionStore getInstance() {
+        if (instance == null) {
+            instance = new SoftwareCoSessionStore(Paths.get(SoftwareCoSessionManager.getSoftwareSessionFile(true)));
+        }
+        return instance;
+    }
+
+    public SoftwareCoSessionStore(Path file) {
+        this.file = file;
+        this.processLock = new SoftwareCoProcessLock(file.resolveSibling("session.lock"));
+    }
+
+    public synchronized String getItem(String key) {
+        checkForExternalChanges(false);
+        JsonElement val = data.get(key);
+        return (val != null && !val.isJsonNull()) ? val.getAsString() : null;
+    }
+
+    public synchronized void setItem(String key, String val) {
+        checkForExternalChanges(false);
+        JsonElement element = (val != null) ? new JsonPrimitive(val) : JsonNull.INSTANCE;
+        if (element.equals(data.get(key))) {
+            // the same value is set again on every status check
+            return;
+        }
+        data.add(key, element);
+        dirtyKeys.add(key);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            AsyncManager.getInstance().executeOnceInMillis(this::flush, flushDelayMillis);
+        }
+    }
+
+    /**
+     * True if the file exists or there are keys waiting to be written to it
+     */
+    public synchronized boolean exists() {
+        return !dirtyKeys.isEmpty() || Files.exists(file);
+    }
+
+    /**
+     * Writes the pending changes now
+     */
+    public synchronized void flush() {
+        flushScheduled = false;
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+        try {
+            processLock.lock();
+            try {
+                // don't overwrite what another process wrote since we read the file
+                checkForExternalChanges(true);
+                write(data.toString().getBytes(Charset.defaultCharset()));
+                dirtyKeys.clear();
+            } finally {
+                processLock.unlock();
+            }
+        } catch (IOException e) {
+            log.info("Code Time: Failed to write the session file, error: " + e.getMessage());
+        }
+    }
+
+    private void write(byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "session", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.WRITE)) {
+                out.write(content);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        rememberFileState();
+    }
+
+    /**
+     * Parses the file again if it changed since it was last read or written
+     */
+    private void checkForExternalChanges(boolean force) {
+        long now = System.currentTimeMillis();
+        if (data != null && !force && now - lastCheck < checkIntervalMillis) {
+            return;
+        }
+        lastCheck = now;
+        long modified = -1;
+        long size = -1;
+        try {
+            if (Files.exists(file)) {
+                modified = Files.getLastModifiedTime(file).toMillis();
+                size = Files.size(file);
+            }
+        } catch (IOException e) {
+            // treat it as unchanged, it's checked again shortly
+            return;
+        }
+        if (data != null && modified == knownModified && size == knownSize) {
+            return;
+        }
+
+        JsonObject loaded = read();
+        if (data != null) {
+            // our unwritten keys are newer than the file
+            for (String key : dirtyKeys) {
+                loaded.add(key, data.get(key));
+            }
+        }
+        data = loaded;
+        knownModified = modified;
+        knownSize = size;
+    }
+
+    private JsonObject read() {
+        if (!Files.exists(file)) {
+            return new JsonObject();
+        }
+        try {
+            String content = new String(Files.readAllBytes(file), Charset.defaultCharset());
+            JsonElement parsed = SoftwareCo.jsonParser.parse(content);
+            if (parsed.isJsonObject()) {
+                return parsed.getAsJsonObject();
+            }
+        } catch (Exception e) {
+            log.info("Code Time: Error trying to read and json parse the session file.", e);
+        }
+        return new JsonObject();
+    }
+
+    private void rememberFileState() throws IOException {
+        knownModified = Files.getLastModifiedTime(file).toMillis();
+        knownSize = Files.size(file);
+        lastCheck = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Lets identical GETs share a request. A GET made while the same one is in
+ * flight waits for that request's response instead of sending its own. For
+ * the endpoints in cacheTtlMillis a successful response is also kept for a
+ * few seconds, so the jobs that ask for the same thing right after each
+ * other, like the status check refetching the kpm summary, don't make the
+ * call twice.
+ *
+ * The cached and in flight responses are never handed out, every caller
+ * gets its own copy and can change it.
+ */
+public class SoftwareCoSingleFlight {
+
+    // how long a successful response is reused, by path, other paths are only shared while in flight
+    public static final Map<String, Long> cacheTtlMillis = new HashMap<>();
+
+    static {
+        cacheTtlMillis.put("/sessions", 15000L);
+        cacheTtlMillis.put("/dashboard", 15000L);
+        cacheTtlMillis.put("/users/me", 10000L);
+        cacheTtlMillis.put("/users/plugin/state", 10000L);
+    }
+
+    private static SoftwareCoSingleFlight instance = null;
+
+    private final ConcurrentHashMap<String, CompletableFuture<SoftwareResponse>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CachedResponse> cache = new ConcurrentHashMap<>();
+
+    private static class CachedResponse {
+        final SoftwareResponse response;
+        final long expires;
+
+        CachedResponse(SoftwareResponse response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+
+    public static synchronized SoftwareCoSingleFlight getInstance() {
+        if (instance == null) {
+            instance = new SoftwareCoSingleFlight();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached or in flight response for the key, or makes the
+     * call on the calling thread
+     *
+     * @param key the api and everything else that changes the response, like the jwt
+     */
+    public SoftwareResponse get(String api, String key, Supplier<SoftwareResponse> call) {
+        try {
+            return getAsync(api, key, () -> CompletableFuture.completedFuture(call.get())).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Like get, but a caller that finds the request in flight gets a future
+     * of its response rather than waiting on it, so no thread is held up
+     */
+    public CompletableFuture<SoftwareResponse> getAsync(String api, String key,
+                                                        Supplier<CompletableFuture<SoftwareResponse>> call) {
+        CachedResponse cached = cache.get(key);
+        if (cached != null) {
+            if (System.currentTimeMillis() < cached.expires) {
+                return CompletableFuture.completedFuture(cached.response.copy());
+            }
+            cache.remove(key, cached);
+        }
+
+        CompletableFuture<SoftwareResponse> flight = new CompletableFuture<>();
+        CompletableFuture<SoftwareResponse> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return leader.thenApply(SoftwareResponse::copy);
+        }
+        CompletableFuture<SoftwareResponse> resp;
+        try {
+            resp = call.get();
+        } catch (RuntimeException e) {
+            resp = new CompletableFuture<>();
+            resp.completeExceptionally(e);
+        }
+        resp.whenComplete((r, e) -> {
+            if (e == null) {
+                long ttl = getCacheTtl(api);
+                if (ttl > 0 && r.isOk()) {
+                    // cached before the flight is removed so no caller misses both
+                    cache.put(key, new CachedResponse(r, System.currentTimeMillis() + ttl));
+                }
+                flight.complete(r);
+            } else {
+                flight.completeExceptionally(e);
+            }
+            inFlight.remove(key, flight);
+        });
+        return flight.thenApply(SoftwareResponse::copy);
+    }
+
+    /**
+     * Drops the cached responses, the next GETs go to the api
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private static long getCacheTtl(String api) {
+        int query = api.indexOf('?');
+        Long ttl = cacheTtlMillis.get((query != -1) ? api.substring(0, query) : api);
+        return (ttl != null) ? ttl : 0;
+    }
+}
@@ -5,8 +5,11 @@
 package com.softwareco.intellij.plugin;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import com.intellij.ide.BrowserUtil;
 import com.intellij.ide.plugins.IdeaPluginDescriptor;
 import com.intellij.ide.plugins.PluginManager;
@@ -27,21 +30,17 @@ import org.apache.commons.lang.SystemUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import javax.swing.*;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -50,13 +49,13 @@ public class SoftwareCoUtils {
 
     public static final Logger LOG = Logger.getLogger("SoftwareCoUtils");
 
-    // set the api endpoint to use
-    public final static String api_endpoint = "https://api.software.com";
+    // set the api endpoint to use, -Dsoftwareco.api_endpoint points it at a local mock server
+    public final static String api_endpoint = System.getProperty("softwareco.api_endpoint", "https://api.software.com");
     // set the launch url to use
     public final static String launch_url = "https://app.software.com";
 
-    public static HttpClient httpClient;
-    public static HttpClient pingClient;
+    // gzip the streamed /data payloads on the fly
+    public static boolean gzipPayloads = false;
 
     public static JsonParser jsonParser = new JsonParser();
 
@@ -64,7 +63,8 @@ public class SoftwareCoUtils {
     public static int pluginId = 4;
     private static String VERSION = null;
 
-    public final static ExecutorService EXECUTOR_SERVICE = Executors.newCachedThreadPool();
+    // the api calls and the jobs that make them, none of them wait on another task on it
+    public final static SoftwareCoExecutor EXECUTOR_SERVICE = new SoftwareCoExecutor("Code Time", 8, 64);
 
     private final static int EOF = -1;
 
@@ -72,25 +72,12 @@ public class SoftwareCoUtils {
     private static JsonObject lastResourceInfo = new JsonObject();
     private static boolean loggedInCacheState = false;
 
-    private static boolean appAvailable = true;
     private static boolean showStatusText = true;
     private static String lastMsg = "";
     private static String lastTooltip = "";
 
     private static String NO_DATA = "CODE TIME\n\nNo data available\n";
 
-    static {
-        // initialize the HttpClient
-        RequestConfig config = RequestConfig.custom()
-                .setConnectTimeout(5000)
-                .setConnectionRequestTimeout(5000)
-                .setSocketTimeout(5000)
-                .build();
-
-        pingClient = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
-        httpClient = HttpClientBuilder.create().build();
-    }
-
     public static class UserStatus {
         public boolean loggedIn;
     }
@@ -151,149 +138,201 @@ public class SoftwareCoUtils {
         return SystemInfo.isMac;
     }
 
-    public static void updateServerStatus(boolean isOnlineStatus) {
-        appAvailable = isOnlineStatus;
-    }
-
+    /**
+     * Makes the call on the calling thread and returns once the response is read
+     */
     public static SoftwareResponse makeApiCall(String api, String httpMethodName, String payload) {
         return makeApiCall(api, httpMethodName, payload, null);
     }
 
     public static SoftwareResponse makeApiCall(String api, String httpMethodName, String payload, String overridingJwt) {
+        return makeApiCall(api, httpMethodName, payload, null, overridingJwt);
+    }
+
+    /**
+     * POSTs the entity, used to stream large payloads without building them as a String
+     */
+    public static SoftwareResponse makeApiCall(String api, HttpEntity entity) {
+        return makeApiCall(api, HttpPost.METHOD_NAME, null, entity, null);
+    }
+
+    /**
+     * Makes the call on the executor and returns right away, the future
+     * completes with the response. The scheduled jobs chain their work on
+     * these so a slow endpoint doesn't hold up the others.
+     */
+    public static CompletableFuture<SoftwareResponse> makeApiCallAsync(String api, String httpMethodName, String payload) {
+        return makeApiCallAsync(api, httpMethodName, payload, null);
+    }
+
+    public static CompletableFuture<SoftwareResponse> makeApiCallAsync(String api, String httpMethodName, String payload, String overridingJwt) {
+        if (httpMethodName.equals(HttpGet.METHOD_NAME)) {
+            // a GET already in flight is joined without taking up a pool thread
+            String jwt = (overridingJwt != null) ? overridingJwt : SoftwareCoSessionManager.getItem("jwt");
+            return SoftwareCoSingleFlight.getInstance().getAsync(api, api + " " + jwt,
+                    () -> EXECUTOR_SERVICE.supplyAsync(
+                            () -> sendApiRequest(api, httpMethodName, payload, null, overridingJwt)));
+        }
+        return EXECUTOR_SERVICE.supplyAsync(
+                () -> makeApiCall(api, httpMethodName, payload, null, overridingJwt));
+    }
+
+    public static CompletableFuture<SoftwareResponse> makeApiCallAsync(String api, HttpEntity entity) {
+        return EXECUTOR_SERVICE.supplyAsync(
+                () -> makeApiCall(api, HttpPost.METHOD_NAME, null, entity, null));
+    }
+
+    private static SoftwareResponse makeApiCall(String api, String httpMethodName, String payload,
+                                                HttpEntity entity, String overridingJwt) {
+        if (httpMethodName.equals(HttpGet.METHOD_NAME)) {
+            // identical GETs share one request, the jwt is part of what makes them identical
+            String jwt = (overridingJwt != null) ? overridingJwt : SoftwareCoSessionManager.getItem("jwt");
+            return SoftwareCoSingleFlight.getInstance().get(api, api + " " + jwt,
+                    () -> sendApiRequest(api, httpMethodName, payload, entity, overridingJwt));
+        }
+        return sendApiRequest(api, httpMethodName, payload, entity, overridingJwt);
+    }
+
+    private static SoftwareResponse sendApiRequest(String api, String httpMethodName, String payload,
+                                                   HttpEntity entity, String overridingJwt) {
 
         SoftwareResponse softwareResponse = new SoftwareResponse();
 
-        SoftwareHttpManager httpTask = null;
+        SoftwareCoCircuitBreaker circuitBreaker = SoftwareCoCircuitBreaker.getInstance();
+        if (!circuitBreaker.allowRequest()) {
+            // the api is down, fail without waiting on a timeout
+            softwareResponse.setIsOk(false);
+            softwareResponse.setErrorMessage("Code Time: The Software api is unavailable, the request wasn't sent");
+            return softwareResponse;
+        }
+
+        SoftwareCoHttpClient.TimeoutProfile timeouts;
         if (api.contains("/ping") || api.contains("/sessions") || api.contains("/dashboard") || api.contains("/users/plugin/accounts")) {
             // if the server is having issues, we'll timeout within 5 seconds for these calls
-            httpTask = new SoftwareHttpManager(api, httpMethodName, payload, overridingJwt, pingClient);
+            timeouts = SoftwareCoHttpClient.TimeoutProfile.QUICK;
         } else {
             if (httpMethodName.equals(HttpPost.METHOD_NAME)) {
-                // continue, POSTS encapsulated "invokeLater" with a timeout of 5 seconds
-                httpTask = new SoftwareHttpManager(api, httpMethodName, payload, overridingJwt, pingClient);
+                // continue, POSTS encapsulated "invokeLater" with a timeout of 5 seconds,
+                // streamed payloads can be large and get longer
+                timeouts = (entity != null)
+                        ? SoftwareCoHttpClient.TimeoutProfile.UPLOAD : SoftwareCoHttpClient.TimeoutProfile.QUICK;
             } else {
-                if (!appAvailable) {
-                    // bail out
-                    softwareResponse.setIsOk(false);
-                    return softwareResponse;
-                }
-                httpTask = new SoftwareHttpManager(api, httpMethodName, payload, overridingJwt, httpClient);
+                timeouts = SoftwareCoHttpClient.TimeoutProfile.DEFAULT;
             }
         }
-        Future<HttpResponse> response = EXECUTOR_SERVICE.submit(httpTask);
-
-        //
-        // Handle the Future if it exist
-        //
-        if (response != null) {
-            try {
-                HttpResponse httpResponse = response.get();
-                if (httpResponse != null) {
-                    int statusCode = httpResponse.getStatusLine().getStatusCode();
-                    if (statusCode < 300) {
-                        softwareResponse.setIsOk(true);
-                    }
-                    softwareResponse.setCode(statusCode);
-                    HttpEntity entity = httpResponse.getEntity();
-                    JsonObject jsonObj = null;
-                    if (entity != null) {
+        // looked up on every call, a client closed by shutdown is replaced with a new one
+        HttpClient httpClient = SoftwareCoHttpClient.getClient();
+        SoftwareHttpManager httpTask = (entity != null)
+                ? new SoftwareHttpManager(api, httpMethodName, entity, overridingJwt, httpClient, timeouts)
+                : new SoftwareHttpManager(api, httpMethodName, payload, overridingJwt, httpClient, timeouts);
+        HttpResponse httpResponse;
+        try {
+            httpResponse = httpTask.call();
+        } catch (RuntimeException e) {
+            // not the api's doing, don't leave a probe hanging on it
+            circuitBreaker.recordInconclusive();
+            throw e;
+        }
+        if (httpResponse == null && httpTask.isLocalFailure()) {
+            // the request never got as far as the api
+            circuitBreaker.recordInconclusive();
+            softwareResponse.setLocalError(true);
+            softwareResponse.setErrorMessage("Code Time: Unable to build the request payload, the request wasn't sent");
+        } else if (httpResponse == null) {
+            softwareResponse.setSent(true);
+            // only a connect failure or a timeout says the api is down
+            if (httpTask.isUnreachable()) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordInconclusive();
+            }
+        } else if (httpResponse.getStatusLine().getStatusCode() >= 500) {
+            softwareResponse.setSent(true);
+            circuitBreaker.recordFailure();
+        } else {
+            softwareResponse.setSent(true);
+            circuitBreaker.recordSuccess();
+        }
+        if (httpResponse != null) {
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+            if (statusCode < 300) {
+                softwareResponse.setIsOk(true);
+            }
+            softwareResponse.setCode(statusCode);
+            HttpEntity responseEntity = httpResponse.getEntity();
+            JsonObject jsonObj = null;
+            if (responseEntity != null) {
+                try {
+                    ContentType contentType = ContentType.getOrDefault(responseEntity);
+                    String mimeType = contentType.getMimeType();
+                    if (mimeType.indexOf("text/plain") != -1) {
+                        // the dashboard, the only response that's kept as text
+                        String text = EntityUtils.toString(responseEntity, StandardCharsets.UTF_8);
+                        softwareResponse.setJsonStr(text);
+                        LOG.log(Level.INFO, "Code Time: API response {0}, length: {1}", new Object[]{statusCode, text.length()});
+                    } else {
+                        JsonElement el = null;
                         try {
-                            ContentType contentType = ContentType.getOrDefault(entity);
-                            String mimeType = contentType.getMimeType();
-                            String jsonStr = getStringRepresentation(entity);
-                            softwareResponse.setJsonStr(jsonStr);
-                            LOG.log(Level.INFO, "Code Time: API response {0}", jsonStr);
-                            if (jsonStr != null && mimeType.indexOf("text/plain") == -1) {
-                                Object jsonEl = null;
-                                try {
-                                    jsonEl = jsonParser.parse(jsonStr);
-                                } catch (Exception e) {
-                                    //
-                                }
+                            el = readJson(responseEntity, contentType);
+                        } catch (JsonParseException e) {
+                            LOG.log(Level.WARNING, "Unable to parse response data: {0}", e.getMessage());
+                        }
+                        LOG.log(Level.INFO, "Code Time: API response {0}", statusCode);
+                        if (el != null && LOG.isLoggable(Level.FINE)) {
+                            LOG.log(Level.FINE, "Code Time: API response data: {0}", el);
+                        }
 
-                                if (jsonEl != null && jsonEl instanceof JsonElement) {
-                                    try {
-                                        JsonElement el = (JsonElement)jsonEl;
-                                        if (el.isJsonPrimitive()) {
-                                            if (statusCode < 300) {
-                                                softwareResponse.setDataMessage(el.getAsString());
-                                            } else {
-                                                softwareResponse.setErrorMessage(el.getAsString());
-                                            }
-                                        } else {
-                                            jsonObj = ((JsonElement) jsonEl).getAsJsonObject();
-                                            softwareResponse.setJsonObj(jsonObj);
-                                        }
-                                    } catch (Exception e) {
-                                        LOG.log(Level.WARNING, "Unable to parse response data: {0}", e.getMessage());
-                                    }
+                        if (el != null) {
+                            if (el.isJsonPrimitive()) {
+                                if (statusCode < 300) {
+                                    softwareResponse.setDataMessage(el.getAsString());
+                                } else {
+                                    softwareResponse.setErrorMessage(el.getAsString());
                                 }
+                            } else if (el.isJsonObject()) {
+                                jsonObj = el.getAsJsonObject();
+                                softwareResponse.setJsonObj(jsonObj);
                             }
-                        } catch (IOException e) {
-                            String errorMessage = "Code Time: Unable to get the response from the http request, error: " + e.getMessage();
-                            softwareResponse.setErrorMessage(errorMessage);
-                            LOG.log(Level.WARNING, errorMessage);
                         }
                     }
+                } catch (IOException e) {
+                    String errorMessage = "Code Time: Unable to get the response from the http request, error: " + e.getMessage();
+                    softwareResponse.setErrorMessage(errorMessage);
+                    LOG.log(Level.WARNING, errorMessage);
+                }
+            }
 
-                    if (statusCode >= 400 && statusCode < 500 && jsonObj != null) {
-                        if (jsonObj.has("code")) {
-                            String code = jsonObj.get("code").getAsString();
-                            if (code != null && code.equals("DEACTIVATED")) {
-                                SoftwareCoUtils.setStatusLineMessage(
-                                        "warning.png", "Code Time", "To see your coding data in Code Time, please reactivate your account.");
-                                softwareResponse.setDeactivated(true);
-                            }
-                        }
+            // a response that was skipped or only partly read still has to hand its connection back to the pool
+            EntityUtils.consumeQuietly(responseEntity);
+
+            if (statusCode >= 400 && statusCode < 500 && jsonObj != null) {
+                if (jsonObj.has("code")) {
+                    String code = jsonObj.get("code").getAsString();
+                    if (code != null && code.equals("DEACTIVATED")) {
+                        SoftwareCoUtils.setStatusLineMessage(
+                                "warning.png", "Code Time", "To see your coding data in Code Time, please reactivate your account.");
+                        softwareResponse.setDeactivated(true);
                     }
                 }
-            } catch (InterruptedException | ExecutionException e) {
-                String errorMessage = "Code Time: Unable to get the response from the http request, error: " + e.getMessage();
-                softwareResponse.setErrorMessage(errorMessage);
-                LOG.log(Level.WARNING, errorMessage);
             }
         }
 
         return softwareResponse;
     }
 
-    private static String getStringRepresentation(HttpEntity res) throws IOException {
-        if (res == null) {
-            return null;
-        }
-
-        ContentType contentType = ContentType.getOrDefault(res);
-        String mimeType = contentType.getMimeType();
-        boolean isPlainText = mimeType.indexOf("text/plain") != -1;
-
-        InputStream inputStream = res.getContent();
-
-        // Timing information--- verified that the data is still streaming
-        // when we are called (this interval is about 2s for a large response.)
-        // So in theory we should be able to do somewhat better by interleaving
-        // parsing and reading, but experiments didn't show any improvement.
-        //
-
-        StringBuffer sb = new StringBuffer();
-        InputStreamReader reader;
-        reader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-
-        BufferedReader br = new BufferedReader(reader);
-        boolean done = false;
-        while (!done) {
-            String aLine = br.readLine();
-            if (aLine != null) {
-                sb.append(aLine);
-                if (isPlainText) {
-                    sb.append("\n");
-                }
-            } else {
-                done = true;
-            }
+    /**
+     * Builds the json tree while the response is still streaming in, no copy
+     * of the body is made. Returns null for an empty body.
+     */
+    private static JsonElement readJson(HttpEntity entity, ContentType contentType) throws IOException {
+        Charset charset = (contentType.getCharset() != null) ? contentType.getCharset() : StandardCharsets.UTF_8;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), charset))) {
+            JsonElement el = jsonParser.parse(reader);
+            return el.isJsonNull() ? null : el;
+        } catch (JsonIOException e) {
+            // the connection failed, not the json
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e);
         }
-        br.close();
-
-        return sb.toString();
     }
 
     public static Date atStartOfDay(Date date) {
@@ -864,6 +903,8 @@ public class SoftwareCoUtils {
         currentUserStatus.loggedIn = loggedIn;
 
         if (loggedInCacheState != loggedIn) {
+            // what we cached was for the previous user
+            SoftwareCoSingleFlight.getInstance().clear();
             sendHeartbeat("STATE_CHANGE:LOGGED_IN:" + loggedIn);
             // refetch kpm
             final Runnable kpmStatusRunner = () -> SoftwareCoSessionManager.getInstance().fetchDailyKpmSessionInfo();
@@ -875,27 +916,37 @@ public class SoftwareCoUtils {
         return currentUserStatus;
     }
 
-    public static void sendHeartbeat(String reason) {
+    /**
+     * Checks the user status on the executor, the calls it makes depend on
+     * each other so they run one after the other there
+     */
+    public static CompletableFuture<UserStatus> getUserStatusAsync() {
+        return EXECUTOR_SERVICE.supplyAsync(SoftwareCoUtils::getUserStatus);
+    }
+
+    public static CompletableFuture<Void> sendHeartbeat(String reason) {
         boolean serverIsOnline = SoftwareCoSessionManager.isServerOnline();
         String jwt = SoftwareCoSessionManager.getItem("jwt");
-        if (serverIsOnline && jwt != null) {
+        if (!serverIsOnline || jwt == null) {
+            return CompletableFuture.completedFuture(null);
+        }
 
-            long start = Math.round(System.currentTimeMillis() / 1000);
+        long start = Math.round(System.currentTimeMillis() / 1000);
 
-            JsonObject payload = new JsonObject();
-            payload.addProperty("pluginId", pluginId);
-            payload.addProperty("os", getOs());
-            payload.addProperty("start", start);
-            payload.addProperty("version", getVersion());
-            payload.addProperty("hostname", getHostname());
-            payload.addProperty("trigger_annotation", reason);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("pluginId", pluginId);
+        payload.addProperty("os", getOs());
+        payload.addProperty("start", start);
+        payload.addProperty("version", getVersion());
+        payload.addProperty("hostname", getHostname());
+        payload.addProperty("trigger_annotation", reason);
 
-            String api = "/data/heartbeat";
-            SoftwareResponse resp = SoftwareCoUtils.makeApiCall(api, HttpPost.METHOD_NAME, payload.toString(), jwt);
+        String api = "/data/heartbeat";
+        return SoftwareCoUtils.makeApiCallAsync(api, HttpPost.METHOD_NAME, payload.toString(), jwt).thenAccept(resp -> {
             if (!resp.isOk()) {
                 LOG.log(Level.WARNING, "Code Time: unable to send heartbeat ping");
             }
-        }
+        });
     }
 
 }
@@ -1,14 +1,21 @@
 package com.softwareco.intellij.plugin;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.entity.StringEntity;
 
 import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,29 +25,48 @@ public class SoftwareHttpManager implements Callable<HttpResponse> {
     public static final Logger LOG = Logger.getLogger("Software");
 
     private String payload;
+    private HttpEntity entity;
     private String api;
     private String httpMethodName;
     private HttpClient httpClient;
     private String overridingJwt;
+    private SoftwareCoHttpClient.TimeoutProfile timeouts;
+    // the request failed building its payload rather than on the network
+    private boolean localFailure = false;
+    // the request failed because the api couldn't be reached
+    private boolean unreachable = false;
 
-    public SoftwareHttpManager(String api, String httpMethodName, String payload, String overridingJwt, HttpClient httpClient) {
+    public SoftwareHttpManager(String api, String httpMethodName, String payload, String overridingJwt,
+                               HttpClient httpClient, SoftwareCoHttpClient.TimeoutProfile timeouts) {
         this.payload = payload;
         this.api = api;
         this.httpMethodName = httpMethodName;
         this.overridingJwt = overridingJwt;
         this.httpClient = httpClient;
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Sends the entity as the POST body, used for payloads that are streamed to the connection
+     */
+    public SoftwareHttpManager(String api, String httpMethodName, HttpEntity entity, String overridingJwt,
+                               HttpClient httpClient, SoftwareCoHttpClient.TimeoutProfile timeouts) {
+        this(api, httpMethodName, (String) null, overridingJwt, httpClient, timeouts);
+        this.entity = entity;
     }
 
     @Override
     public HttpResponse call() {
-        HttpUriRequest req = null;
+        HttpRequestBase req = null;
         try {
             HttpResponse response = null;
 
             switch (httpMethodName) {
                 case HttpPost.METHOD_NAME:
                     req = new HttpPost("" + SoftwareCoUtils.api_endpoint + this.api);
-                    if (payload != null) {
+                    if (entity != null) {
+                        ((HttpPost)req).setEntity(entity);
+                    } else if (payload != null) {
                         //
                         // add the json payload
                         //
@@ -64,9 +90,13 @@ public class SoftwareHttpManager implements Callable<HttpResponse> {
             }
 
             req.addHeader("Content-type", "application/json");
+            req.setConfig(timeouts.getRequestConfig());
 
-            if (payload != null) {
-                LOG.log(Level.INFO, "Code Time: Sending API request: {0}, payload: {1}", new Object[]{api, payload});
+            if (entity != null) {
+                LOG.log(Level.INFO, "Code Time: Sending API request: {0}, streaming payload", api);
+            } else if (payload != null) {
+                LOG.log(Level.INFO, "Code Time: Sending API request: {0}, payload length: {1}", new Object[]{api, payload.length()});
+                LOG.log(Level.FINE, "Code Time: API request payload: {0}", payload);
             } else {
                 LOG.log(Level.INFO, "Code Time: Sending API request: {0}", api);
             }
@@ -78,10 +108,43 @@ public class SoftwareHttpManager implements Callable<HttpResponse> {
             // Return the response
             //
             return response;
+        } catch (SoftwareJsonEntity.ContentException e) {
+            localFailure = true;
+            LOG.log(Level.WARNING, "Code Time: Unable to build the api request payload.{0}", e.getMessage());
         } catch (IOException e) {
+            unreachable = isUnreachable(e);
             LOG.log(Level.WARNING, "Code Time: Unable to make api request.{0}", e.getMessage());
         }
 
         return null;
     }
+
+    /**
+     * True if call returned null because the payload couldn't be built
+     */
+    public boolean isLocalFailure() {
+        return localFailure;
+    }
+
+    /**
+     * True if call returned null because the api couldn't be reached, the
+     * failures the circuit breaker counts
+     */
+    public boolean isUnreachable() {
+        return unreachable;
+    }
+
+    /**
+     * The connection was refused or reset, it or the response timed out, or
+     * the host couldn't be found. A bad certificate, a protocol error or a
+     * wait for one of our own pooled connections says nothing about the api.
+     */
+    private static boolean isUnreachable(IOException e) {
+        if (e instanceof ConnectionPoolTimeoutException) {
+            return false;
+        }
+        return e instanceof SocketException || e instanceof SocketTimeoutException
+                || e instanceof ConnectTimeoutException || e instanceof NoHttpResponseException
+                || e instanceof UnknownHostException;
+    }
 }
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.intellij.plugin;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Http entity that writes its json through a Gson JsonWriter straight to the
+ * connection's output stream, optionally gzipped on the fly. The payload is
+ * never built as a String, so large payloads use a constant amount of memory.
+ */
+public class SoftwareJsonEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Writes the json content. It may be called more than once if the request is retried.
+     */
+    public interface JsonContent {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    /**
+     * The content couldn't be produced, the request failed on this side and
+     * says nothing about the network or the api. Sending it again fails the
+     * same way.
+     */
+    public static class ContentException extends IOException {
+        public ContentException(Throwable cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private final JsonContent content;
+    private final boolean gzip;
+
+    public SoftwareJsonEntity(JsonContent content, boolean gzip) {
+        this.content = content;
+        this.gzip = gzip;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+        // the length isn't known up front, let the client chunk it
+        setChunked(true);
+    }
+
+    /**
+     * Streams the object using the plugin's Gson instance
+     */
+    public static SoftwareJsonEntity of(Object payload, boolean gzip) {
+        return new SoftwareJsonEntity(out -> SoftwareCo.gson.toJson(payload, payload.getClass(), out), gzip);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeTo(baos);
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(outStream, BUFFER_SIZE) : null;
+        OutputStream target = (gzipStream != null) ? gzipStream : outStream;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), BUFFER_SIZE);
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        content.write(jsonWriter);
+        jsonWriter.flush();
+        if (gzipStream != null) {
+            // write the gzip trailer without closing the connection's stream
+            gzipStream.finish();
+        }
+        outStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -6,6 +6,8 @@ public class SoftwareResponse {
 
     private boolean ok = false;
     private boolean deactivated = false;
+    private boolean localError = false;
+    private boolean sent = false;
     private int code;
     private String dataMessage;
     private String errorMessage;
@@ -28,6 +30,29 @@ public class SoftwareResponse {
         this.deactivated = deactivated;
     }
 
+    /**
+     * The request failed on this side before it reached the api, like a
+     * payload that couldn't be read
+     */
+    public boolean isLocalError() {
+        return localError;
+    }
+
+    public void setLocalError(boolean localError) {
+        this.localError = localError;
+    }
+
+    /**
+     * The request went out, even if it failed it may have reached the api
+     */
+    public boolean isSent() {
+        return sent;
+    }
+
+    public void setSent(boolean sent) {
+        this.sent = sent;
+    }
+
     public int getCode() {
         return code;
     }
@@ -67,4 +92,21 @@ public class SoftwareResponse {
     public void setJsonObj(JsonObject jsonObj) {
         this.jsonObj = jsonObj;
     }
+
+    /**
+     * A copy the caller can change, the json object is copied too
+     */
+    public SoftwareResponse copy() {
+        SoftwareResponse copy = new SoftwareResponse();
+        copy.ok = ok;
+        copy.deactivated = deactivated;
+        copy.localError = localError;
+        copy.sent = sent;
+        copy.code = code;
+        copy.dataMessage = dataMessage;
+        copy.errorMessage = errorMessage;
+        copy.jsonStr = jsonStr;
+        copy.jsonObj = (jsonObj != null) ? jsonObj.deepCopy() : null;
+        return copy;
+    }
 }